@@ -0,0 +1,72 @@
+package kiwi;
+
+/**
+ * Search within a block of sorted keys of the blocked search layout (see Chunk.buildSearchIndex).
+ * The vector implementation (VectorBlockSearch, built by the 'vector' profile from src/main/vector) compares a whole
+ * vector of keys at once, and is used when the jdk.incubator.vector module is available at runtime
+ * (--add-modules jdk.incubator.vector). Otherwise keys are compared one by one.
+ */
+public abstract class BlockSearch
+{
+	private static final String VECTOR_IMPL = "kiwi.VectorBlockSearch";
+
+	/** the implementation chunks use - final, so calls are inlined */
+	static final BlockSearch instance = create();
+
+	/** @return # of keys in keys[from, to) smaller than key. keys must be sorted */
+	public abstract int countLess(int[] keys, int from, int to, int key);
+
+	/** long-key counterpart of countLess */
+	public abstract int countLess(long[] keys, int from, int to, long key);
+
+	/** @return true if keys are compared a vector at a time */
+	public boolean isVectorized()
+	{
+		return false;
+	}
+
+	/** @return the vector implementation if it was built and its module is available, the scalar one otherwise.
+	 * setting the system property kiwi.vectorSearch to false forces the scalar one */
+	static BlockSearch create()
+	{
+		if (!Boolean.parseBoolean(System.getProperty("kiwi.vectorSearch", "true")))
+			return new Scalar();
+
+		try
+		{
+			return (BlockSearch) Class.forName(VECTOR_IMPL).getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e)	// class not built, ...
+		{
+			return new Scalar();
+		}
+		catch (LinkageError e)	// module not added (NoClassDefFoundError), ...
+		{
+			return new Scalar();
+		}
+	}
+
+	/** compares keys one by one, stopping at the first key not smaller than key */
+	static final class Scalar extends BlockSearch
+	{
+		@Override
+		public int countLess(int[] keys, int from, int to, int key)
+		{
+			int i = from;
+			while ((i < to) && (keys[i] < key))
+				i++;
+
+			return i - from;
+		}
+
+		@Override
+		public int countLess(long[] keys, int from, int to, long key)
+		{
+			int i = from;
+			while ((i < to) && (keys[i] < key))
+				i++;
+
+			return i - from;
+		}
+	}
+}
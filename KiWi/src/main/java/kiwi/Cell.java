@@ -1,7 +1,5 @@
 package kiwi;
 
-import java.nio.ByteBuffer;
-
 public class Cell implements Comparable<Cell>
 {
 	public static final	Cell Empty = new Cell(new byte[0], 0, 0);
@@ -67,6 +65,20 @@ public class Cell implements Comparable<Cell>
 
 	public int compareTo(Cell c)
 	{
-		return ByteBuffer.wrap(bytes, offset, length).compareTo(ByteBuffer.wrap(c.getBytes(), c.getOffset(), c.getLength()));
+		return compare(bytes, offset, length, c.getBytes(), c.getOffset(), c.getLength());
+	}
+
+	/** compares two byte strings lexicographically, bytes taken as unsigned; a proper prefix is smaller.
+	 * used directly on chunk arenas - no Cell is needed to compare */
+	public static int compare(byte[] b1, int off1, int len1, byte[] b2, int off2, int len2)
+	{
+		int len = Math.min(len1, len2);
+		for (int i = 0; i < len; ++i)
+		{
+			int diff = (b1[off1 + i] & 0xFF) - (b2[off2 + i] & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+		return len1 - len2;
 	}
 }
@@ -1,16 +1,15 @@
 package kiwi;
 
-import kiwi.ThreadData.PutData;
 import sun.misc.Unsafe;
 import util.Utils;
 
 import java.lang.reflect.Constructor;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicMarkableReference;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Created by msulamy on 7/27/15.
@@ -22,17 +21,23 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	protected static final int		FREEZE_VERSION	= 1;
 	protected static final int 		CANCELED_REMOVE_NEXT = -1;
 	
-	// order_size(4) = next + version + key + data
-	protected static final int		ORDER_SIZE = 4;		// # of fields in each item of order array
+	// order_size(3) = next + key + data - versions are 64 bit, so they are kept apart (see getVersionField)
+	protected static final int		ORDER_SIZE = 3;		// # of fields in each item of order array
 	protected static final int		OFFSET_NEXT = 0;
-	protected static final int		OFFSET_VERSION = 1;	// POSITIVE means item is linked, otherwise might not be linked yet
-	protected static final int		OFFSET_KEY = 2;
-	protected static final int		OFFSET_DATA = 3;
+	protected static final int		OFFSET_KEY = 1;
+	protected static final int		OFFSET_DATA = 2;
 	
 	// location of the first (head) node - just a next pointer
-	private static final int		HEAD_NODE = 0;
+	protected static final int		HEAD_NODE = 0;
 	// index of first item in order-array, after head (not necessarily first in list!)
-	private static final int		FIRST_ITEM = 1;
+	protected static final int		FIRST_ITEM = 1;
+	// # of keys in a block of the blocked search layout (see buildSearchIndex) - a cache line of ints
+	protected static final int		SEARCH_BLOCK = 16;
+	// lookups walking more items than this past the sorted prefix are counted in the statistics
+	protected static final int		LOOKUP_HOPS_SAMPLE = 8;
+	// bits of the Bloom filter per item of the chunk's capacity, and bits set per key - all in one word (see mayContain)
+	protected static final int		BLOOM_BITS_PER_ITEM = 8;
+	protected static final int		BLOOM_HASHES = 3;
 	
 	public static int				MAX_ITEMS = 4500;
 	public static boolean			ALLOW_DUPS = true;
@@ -40,8 +45,28 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 	/***************	Members				***************/
 	static final Unsafe					unsafe;
-	private final int[]							orderArray;	// array is initialized to 0, i.e., NONE - this is important!
-	protected final Object[]							dataArray;
+	private volatile int[]						orderArray;	// array is initialized to 0, i.e., NONE - this is important!
+															// null for chunks keeping their order array off-heap, or while packed
+	private static final AtomicReferenceFieldUpdater<Chunk<?,?>,int[]> orderArrayUpdater = newOrderArrayUpdater();
+
+	// version of each item, indexed by orderIndex / ORDER_SIZE. POSITIVE means item is linked, otherwise might
+	// not be linked yet - null for chunks keeping their versions off-heap
+	private final long[]						versions;
+
+	// packed layout of a fully sorted chunk (see pack) - items are consecutive, so next pointers are implicit
+	private int									packedCount;
+	private int[]								packedKeys;		// null if no key is kept in the order array
+	private int[]								packedData;		// null unless packed
+
+	// blocked search layout of the sorted prefix (see buildSearchIndex) - null unless built
+	private int[]								searchKeys;		// keys of the sorted items, contiguous
+	private int[]								searchBlocks;	// first key of each block of SEARCH_BLOCK search keys
+
+	private final long[]						bloom;		// blocked Bloom filter of the keys of all items - null if not kept
+	protected final int							capacity;	// max # of items - set per chunk (see Rebalancer.Policy)
+	protected final int							orderLength;// # of ints in the order array (wherever it is kept)
+	protected final Object[]							dataArray;	// null for chunks keeping their data in primitive arrays
+	private final int							dataCapacity;	// # of slots in the data array (whatever its type)
 
 	private final AtomicInteger					orderIndex;	// points to next free index of order array
 	private final AtomicInteger					dataIndex;	// points to next free index of data array
@@ -62,8 +87,17 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	private int orderIndexSerial;
 	private int dataIndexSerial;
 
-	private PutData<K,V>[] putArray;
-	private static final int PAD_SIZE = 100;
+	// pending put of each thread - the id of its chunk and the order index of its item, shared by all chunks
+	// (a thread has a single pending put), so a chunk costs no thread array. chunk id 0 if none (see publishPut)
+	private static final int PUT_PAD_SIZE = 16;	// # of longs between entries, a couple of cache lines
+	private static final int PUT_SEQ = 0;		// # of writes of the entry - odd while it is written
+	private static final int PUT_CHUNK = 1;
+	private static final int PUT_ITEM = 2;
+	private static final int PUT_LAST = 3;		// last item of a published run
+	private static final LongSlotArray putArray = new LongSlotArray(PUT_PAD_SIZE);
+	private static final AtomicLong nextId = new AtomicLong(0);
+	private final long id;		// tags the putArray entries of puts in this chunk - never reused
+	private final AtomicInteger pendingPuts = new AtomicInteger(0);	// # of putArray entries of this chunk (an upper bound)
 
 	protected LowerUpperBounds sizeBounds;
 
@@ -78,112 +112,296 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	}
 
 	public final boolean isFreezed() {
-		return orderIndex.get() >= orderArray.length;
+		return orderIndex.get() >= orderLength;
 	}
 
 	public final boolean tryFreezeItem(final int oi) {
-		return cas(oi,OFFSET_VERSION, NONE, FREEZE_VERSION);
+		return casVersionField(oi, NONE, FREEZE_VERSION);
 	}
 
-	public abstract int copyRange(Object[] resultValues, Object[] resultKeys, boolean addKeys, final int idx, final int myVer, final K min, final K max, final SortedMap<K,PutData<K,V>> items);
-
-	/** this method is used by scan operations (ONLY) to help pending put operations set a version
-	 * @return sorted map of items matching key range of any currently-pending put operation */
-
-	public SortedMap<K,PutData<K,V>> helpPutInScan(int myVersion, K min, K max)
+	/** copies the newest value (version <= myVer) of each key in [min,max] into resultValues (and resultKeys if addKeys)
+	 * starting at idx, merging the linked list with the pending puts found by helpPutInScan. removed keys are copied
+	 * as null - KiWi.scan removes them
+	 * @param pending order indexes of pending puts in this chunk, sorted by key (see helpPutInScan)
+	 * @return number of items copied */
+	public abstract int copyRange(Object[] resultValues, Object[] resultKeys, boolean addKeys, final int idx, final long myVer, final K min, final K max, final int[] pending, final int pendingCount);
+
+	/** this method is used by scan operations (ONLY) to help pending put operations set a version.
+	 * fills 'pending' with the order index of the newest pending put of each key in [min,max], sorted by key
+	 * @param version the map's version, a pending put is given its current value (see helpVersion)
+	 * @return number of order indexes written into 'pending' (which should hold ThreadRegistry.maxSlots() items) */
+	public int helpPutInScan(long myVersion, AtomicLong version, K min, K max, int[] pending)
 	{
-		SortedMap<K,PutData<K,V>> items = new TreeMap<>();
+		int count = 0;
+		if (!hasPendingPuts())
+			return count;
 
-		// go over thread data of all threads
-		for (int i = 0; i < KiWi.MAX_THREADS; ++i)
+		// go over thread data of all registered threads (bounded by 'pending', see helpPutInScanInt)
+		int slots = Math.min(ThreadRegistry.maxSlots(), pending.length);
+		for (int i = 0; i < slots; ++i)
 		{
 			// make sure data is for a Put operatio
-			PutData<K,V> currPut = putArray[pad(i)];
-			if (currPut == null)
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
 				continue;
 
+			// a run of a batch put - help its items in key range into the linked list
+			if (currOi < NONE)
+			{
+				int last = publishedRunLast(i, -currOi);
+				if (last != NONE)
+					helpRunInScan(runBound(-currOi, last, min, false), runBound(-currOi, last, max, true), myVersion, version);
+				continue;
+			}
+
 			// if put operation's key is not in key range - skip it
-			K currKey = readKey(currPut.orderIndex);
-			if ((currKey.compareTo(min) < 0) || (currKey.compareTo(max) > 0))
+			if ((compareKey(currOi, min) < 0) || (compareKey(currOi, max) > 0))
 				continue;
 
 			// read the current version of the item
-			int currVer = getVersion(currPut.orderIndex);
+			long currVer = getVersion(currOi);
 
-			// if empty, try to set to my version
+			// if empty, try to set to the current version
 			if (currVer == NONE)
-				currVer = setVersion(currPut.orderIndex, myVersion);
+				currVer = setVersion(currOi, helpVersion(version));
 
 			// if item is frozen or beyond my version - skip it
 			if ((currVer == Chunk.FREEZE_VERSION) || (currVer > myVersion))
 				continue;
 
-			// get found item matching current key
-			PutData<K,V> item = items.get(currKey);
+			// find position of key among items found so far (kept sorted by key)
+			int pos = count;
+			while ((pos > 0) && (compareKeys(pending[pos - 1], currOi) >= 0))
+				--pos;
 
-			// is there such an item we previously found? check if we need to replace it
-			if (item != null)
+			// same key found before - keep the newer of the two (version, then order index)
+			if ((pos < count) && (compareKeys(pending[pos], currOi) == 0))
 			{
-				// get its version
-				int itemVer = getVersion(item.orderIndex);
+				long itemVer = getVersion(pending[pos]);
+				if ((itemVer > currVer) || ((itemVer == currVer) && (pending[pos] > currOi)))
+					continue;
 
-				// existing item is newer - don't replace
-				if (itemVer > currVer)
-				{
+				pending[pos] = currOi;
+				continue;
+			}
+
+			System.arraycopy(pending, pos, pending, pos + 1, count - pos);
+			pending[pos] = currOi;
+			++count;
+		}
+
+		return count;
+	}
+
+
+	/** int-key counterpart of helpPutInScan, for chunks keeping the key itself in the order array.
+	 * fills 'pending' with the order index of the newest pending put of each key in [min,max], sorted by key
+	 * @param version the map's version, a pending put is given its current value (see helpVersion)
+	 * @return number of order indexes written into 'pending' (which should hold ThreadRegistry.maxSlots() items) */
+	public int helpPutInScanInt(long myVersion, AtomicLong version, int min, int max, int[] pending)
+	{
+		int count = 0;
+		if (!hasPendingPuts())
+			return count;
+
+		// go over thread data of all registered threads. threads registered after 'pending' was sized
+		// publish after myVersion was taken, so their puts get newer versions and may be skipped
+		int slots = Math.min(ThreadRegistry.maxSlots(), pending.length);
+		for (int i = 0; i < slots; ++i)
+		{
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
+				continue;
+
+			// a run of a batch put - help its items in key range into the linked list
+			if (currOi < NONE)
+			{
+				int last = publishedRunLast(i, -currOi);
+				if (last != NONE)
+					helpRunInScan(runBoundInt(-currOi, last, min, false), runBoundInt(-currOi, last, max, true), myVersion, version);
+				continue;
+			}
+
+			// if put operation's key is not in key range - skip it
+			int currKey = get(currOi, OFFSET_KEY);
+			if ((currKey < min) || (currKey > max))
+				continue;
+
+			// read the current version of the item, if empty try to set to the current version
+			long currVer = getVersion(currOi);
+			if (currVer == NONE)
+				currVer = setVersion(currOi, helpVersion(version));
+
+			// if item is frozen or beyond my version - skip it
+			if ((currVer == FREEZE_VERSION) || (currVer > myVersion))
+				continue;
+
+			// find position of key among items found so far (kept sorted by key)
+			int pos = count;
+			while ((pos > 0) && (get(pending[pos - 1], OFFSET_KEY) >= currKey))
+				--pos;
+
+			// same key found before - keep the newer of the two (version, then order index)
+			if ((pos < count) && (get(pending[pos], OFFSET_KEY) == currKey))
+			{
+				long itemVer = getVersion(pending[pos]);
+				if ((itemVer > currVer) || ((itemVer == currVer) && (pending[pos] > currOi)))
 					continue;
-				}
-				// if same versions - continue checking (otherwise currVer is newer so will replace item)
-				else if (itemVer == currVer)
-				{
-					// same chunk & version but items's index is larger - don't replace
-					// TODO: correct this to compare data index instead of order index.
-					if (item.orderIndex > currPut.orderIndex)
-						continue;
-				}
 
+				pending[pos] = currOi;
+				continue;
 			}
 
-			// if we've reached here then curr is newer than item, and we replace it
-			items.put(currKey, currPut);
+			System.arraycopy(pending, pos, pending, pos + 1, count - pos);
+			pending[pos] = currOi;
+			++count;
 		}
 
-		return items;
+		return count;
 	}
 
+	/** @return order index of the put currently published by thread idx in this chunk, or NONE -
+	 * or minus the first item of a run published by a batch put (see publishRun) */
+	protected final int publishedPut(int idx)
+	{
+		long seq = putArray.get(idx, PUT_SEQ);
+		if (((seq & 1) != 0) || (putArray.get(idx, PUT_CHUNK) != id))
+			return NONE;
 
-	private final int pad(int idx)
+		int oi = (int) putArray.get(idx, PUT_ITEM);
+		return (putArray.get(idx, PUT_SEQ) == seq) ? oi : NONE;
+	}
+
+	/** @return the last item of the run thread idx published from first, or NONE if the run is no longer
+	 * published - all of its items are then linked or frozen */
+	protected final int publishedRunLast(int idx, int first)
 	{
-		return (PAD_SIZE + idx*PAD_SIZE);
+		long seq = putArray.get(idx, PUT_SEQ);
+		if (((seq & 1) != 0) || (putArray.get(idx, PUT_CHUNK) != id) || (putArray.get(idx, PUT_ITEM) != -first))
+			return NONE;
+
+		int last = (int) putArray.get(idx, PUT_LAST);
+		return (putArray.get(idx, PUT_SEQ) == seq) ? last : NONE;
+	}
+
+	/** @return the first item of the run [first,last] which key is larger than key (if upper) or not smaller
+	 * than key, or the item after last if there is none */
+	protected final int runBound(int first, int last, K key, boolean upper)
+	{
+		int start = (first - FIRST_ITEM) / ORDER_SIZE;
+		int end = (last - FIRST_ITEM) / ORDER_SIZE + 1;
+		while (start < end)
+		{
+			int curr = (start + end) >>> 1;
+			int cmp = compareKey(curr * ORDER_SIZE + FIRST_ITEM, key);
+			if ((cmp < 0) || (upper && (cmp == 0)))
+				start = curr + 1;
+			else
+				end = curr;
+		}
+
+		return start * ORDER_SIZE + FIRST_ITEM;
+	}
+
+	/** int-key counterpart of runBound */
+	protected final int runBoundInt(int first, int last, int key, boolean upper)
+	{
+		int start = (first - FIRST_ITEM) / ORDER_SIZE;
+		int end = (last - FIRST_ITEM) / ORDER_SIZE + 1;
+		while (start < end)
+		{
+			int curr = (start + end) >>> 1;
+			int currKey = get(curr * ORDER_SIZE + FIRST_ITEM, OFFSET_KEY);
+			if ((currKey < key) || (upper && (currKey == key)))
+				start = curr + 1;
+			else
+				end = curr;
+		}
+
+		return start * ORDER_SIZE + FIRST_ITEM;
+	}
+
+	/** helps the items [from,to) of a published run, for a scan: sets the version of each item that has none
+	 * to the current version, and links the items the scan sees - so they are found in the linked list rather than
+	 * among the pending puts, which hold a single put per thread */
+	private void helpRunInScan(int from, int to, long myVersion, AtomicLong version)
+	{
+		int ancor = NONE;
+		for (int oi = from; oi < to; oi += ORDER_SIZE)
+		{
+			long currVer = getVersion(oi);
+			if (currVer == NONE)
+				currVer = setVersion(oi, helpVersion(version));
+
+			if ((currVer == FREEZE_VERSION) || (currVer > myVersion))
+				continue;
+
+			ancor = linkRunItem(oi, ancor);
+		}
+	}
+
+	/** @return the version a helper sets for a pending put it found, read after the put was published - as the put
+	 * itself does. not the helper's own version, which may be older than a put of the same key that completed
+	 * before the pending put started (and so would order the pending put before it) */
+	protected static long helpVersion(AtomicLong version)
+	{
+		return version.get();
+	}
+
+	/** links an item of a run, starting the search at the nearer of ancor - a linked item of the run with a
+	 * smaller key, or NONE - and the entry found by binary search of the sorted part
+	 * @return the item if it is linked (an ancor for the next item of the run), otherwise NONE */
+	protected final int linkRunItem(int oi, int ancor)
+	{
+		int start = binaryFindItem(oi);
+		if ((ancor != NONE) && ((start == HEAD_NODE) || (compareKeys(ancor, start) > 0)))
+			start = ancor;
+
+		addToList(oi, start);
+		return (getVersionField(oi) > 0) ? oi : NONE;
 	}
 
 
 	/** this method is used by get operations (ONLY) to help pending put operations set a version
-	 * @return newest item matching myKey of any currently-pending put operation */
-	public PutData<K,V> helpPutInGet(int myVersion, K myKey)
+	 * @param version the map's version, a pending put is given its current value (see helpVersion)
+	 * @return order index of the newest item matching myKey of any currently-pending put operation, or NONE */
+	public int helpPutInGet(AtomicLong version, K myKey)
 	{
 		// marks the most recent put that was found in the thread-array
-		PutData<K,V> newestPut = null;
-		int newestVer = Chunk.NONE;
+		int newestOi = NONE;
+		long newestVer = Chunk.NONE;
 
-		// go over thread data of all threads
-		for (int i = 0; i < KiWi.MAX_THREADS; ++i)
+		// no put in flight - nothing to help
+		if (!hasPendingPuts())
+			return NONE;
+
+		// go over thread data of all registered threads
+		int slots = ThreadRegistry.maxSlots();
+		for (int i = 0; i < slots; ++i)
 		{
 			// make sure data is for a Put operation
-			PutData<K,V> currPut = putArray[pad(i)];
-			if (currPut == null)
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
 				continue;
 
+			// a run of a batch put - its item of my key, if any
+			if (currOi < NONE)
+			{
+				int last = publishedRunLast(i, -currOi);
+				if ((last == NONE) || ((currOi = runBound(-currOi, last, myKey, false)) > last))
+					continue;
+			}
+
 			// if put operation's key is not same as my key - skip it
-			K currKey = readKey(currPut.orderIndex);
-			if (currKey.compareTo(myKey) != 0)
+			if (compareKey(currOi, myKey) != 0)
 				continue;
 
 			// read the current version of the item
-			int currVer = getVersion(currPut.orderIndex);
+			long currVer = getVersion(currOi);
 
-			// if empty, try to set to my version
+			// if empty, try to set to the current version
 			if (currVer == Chunk.NONE)
-				currVer = setVersion(currPut.orderIndex, myVersion);
+				currVer = setVersion(currOi, helpVersion(version));
 
 			// if item is frozen - skip it
 			if (currVer == Chunk.FREEZE_VERSION)
@@ -193,42 +411,131 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			if (currVer > newestVer)
 			{
 				newestVer = currVer;
-				newestPut = currPut;
+				newestOi = currOi;
 			}
 			// same version for both item - check according to chunk
 			else if (currVer == newestVer)
 			{
 					// same chunk & version but current's index is larger - it is newer
-					if (currPut.orderIndex > newestPut.orderIndex)
-						newestPut = currPut;
+					if (currOi > newestOi)
+						newestOi = currOi;
 			}
 		}
 
-		// return item if its chunk.child1 is null, otherwise return null
-		if ((newestPut == null) || (isRebalanced()))
-			return null;
+		// return item if its chunk.child1 is null, otherwise return NONE
+		if (isRebalanced())
+			return NONE;
 		else
-			return newestPut;
+			return newestOi;
 	}
 
+	/** int-key counterpart of helpPutInGet, for chunks keeping the key itself in the order array
+	 * @return order index of the newest pending put of myKey, or NONE */
+	public int helpPutInGetInt(AtomicLong version, int myKey)
+	{
+		int newestOi = NONE;
+		long newestVer = NONE;
+		if (!hasPendingPuts())
+			return NONE;
+
+		// go over thread data of all registered threads
+		int slots = ThreadRegistry.maxSlots();
+		for (int i = 0; i < slots; ++i)
+		{
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
+				continue;
+
+			// a run of a batch put - its item of my key, if any
+			if (currOi < NONE)
+			{
+				int last = publishedRunLast(i, -currOi);
+				if ((last == NONE) || ((currOi = runBoundInt(-currOi, last, myKey, false)) > last))
+					continue;
+			}
+
+			// if put operation's key is not same as my key - skip it
+			if (get(currOi, OFFSET_KEY) != myKey)
+				continue;
+
+			// read the current version of the item, if empty try to set to the current version
+			long currVer = getVersion(currOi);
+			if (currVer == NONE)
+				currVer = setVersion(currOi, helpVersion(version));
+
+			// if item is frozen - skip it
+			if (currVer == FREEZE_VERSION)
+				continue;
 
-	/** publish data into thread array - use null to clear **/
-	public void publishPut(PutData<K,V> data)
+			// newer version, or same version but later in chunk - replace
+			if ((currVer > newestVer) || ((currVer == newestVer) && (currOi > newestOi)))
+			{
+				newestVer = currVer;
+				newestOi = currOi;
+			}
+		}
+
+		if (isRebalanced())
+			return NONE;
+
+		return newestOi;
+	}
+
+
+	/** publish the order index of a pending put's item into thread array - use NONE to clear.
+	 * plain words rather than a record, so publishing allocates nothing - and a helper reading a slot gets the
+	 * index of an item that was published in this chunk, exactly as when reading an (immutable) record:
+	 * the words are written between two increments of the entry's PUT_SEQ, and a read is valid only if
+	 * PUT_SEQ was even and unchanged throughout it (otherwise the slot is being cleared or published, and
+	 * reads as empty - a thread clears its slot before publishing again) **/
+	public void publishPut(int oi)
 	{
-		// get index of current thread
-		// since thread IDs are increasing and changing, we assume threads are created one after another (sequential IDs).
-		// thus, (ThreadID % MAX_THREADS) will return a unique index for each thread in range [0, MAX_THREADS)
-		int idx = (int) (Thread.currentThread().getId() % KiWi.MAX_THREADS);
+		publish(ThreadRegistry.slot(), oi, NONE);
+	}
 
-		// TODO verify the assumption about sequential IDs
+	/** publishes the items of a batch put - the run of items from first to last (inclusive), allocated together
+	 * and sorted by distinct keys (see ChunkIntInt.allocateRun). cleared by publishPut(NONE), as a single put.
+	 * the last item is published along with the first (see publishedRunLast) */
+	public void publishRun(int first, int last)
+	{
+		publish(ThreadRegistry.slot(), -first, last);
+	}
 
-		// publish into thread array
-		putArray[pad(idx)] = data;
+	/** @param oi order index of the published item, minus the first item of a published run, or NONE
+	 * @param last last item of a published run */
+	private void publish(int slot, int oi, int last)
+	{
+		boolean wasEmpty = (putArray.get(slot, PUT_CHUNK) != id);	// the slot is only written by its owner
+
+		// count the put before it is visible, and uncount it after it is not -
+		// so reading no pending puts means there was no published put at that point
+		if (wasEmpty && (oi != NONE))
+			pendingPuts.incrementAndGet();
+
+		// publish into the slot of the current thread
+		long seq = putArray.get(slot, PUT_SEQ);
+		putArray.set(slot, PUT_SEQ, seq + 1);
+		putArray.set(slot, PUT_CHUNK, (oi == NONE) ? 0 : id);
+		if (oi != NONE)
+			putArray.set(slot, PUT_ITEM, oi);
+		if (oi < NONE)
+			putArray.set(slot, PUT_LAST, last);
+		putArray.set(slot, PUT_SEQ, seq + 2);
 		Chunk.unsafe.storeFence();
 
+		if (!wasEmpty && (oi == NONE))
+			pendingPuts.decrementAndGet();
+	}
+
+	/** @return false if no put operation was published in this chunk (when called), so there is none to help */
+	protected final boolean hasPendingPuts()
+	{
+		return (pendingPuts.get() != 0);
 	}
 
 	public void debugCalcCounters(DebugStats ds) {
+		debugCalcFilterCounters(ds);
+
 		ItemsIterator iter = itemsIterator();
 		ds.sortedCells += sortedCount;
 		ds.occupiedCells += orderIndex.get()/ORDER_SIZE;
@@ -261,7 +568,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			key = iter.getKey();
 
 			V val = iter.getValue();
-			int version = iter.getVersion();
+			long version = iter.getVersion();
 
 			if (val == null)
 				ds.nulItemsCount++;
@@ -291,13 +598,15 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	public class Statistics
 	{
 		private AtomicInteger dupsCount = new AtomicInteger(0);
+		private AtomicInteger removedCount = new AtomicInteger(0);
+		private int lookupHops = 0;		// racy - lost updates are fine for a heuristic
 		/***
 		 *
 		 * @return Maximum number of items the chunk can hold
          */
 		public int getMaxItems()
 		{
-			return Chunk.this.MAX_ITEMS;
+			return Chunk.this.capacity;
 		}
 
 		/***
@@ -315,7 +624,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
          */
 		public int getCompactedCount()
 		{
-			return getFilledCount() - getDuplicatesCount();
+			return getFilledCount() - getDuplicatesCount() - getRemovedCount();
 		}
 
 		public void incrementDuplicates()
@@ -327,6 +636,44 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		{
 			return dupsCount.get();
 		}
+
+		public void incrementRemoved()
+		{
+			removedCount.addAndGet(1);
+		}
+
+		/***
+		 *
+		 * @return Number of removals (tombstones) inserted into the chunk
+		 */
+		public int getRemovedCount()
+		{
+			return removedCount.get();
+		}
+
+		/***
+		 *
+		 * @return Number of items inserted after the sorted prefix, i.e., linked into the list out of order
+		 */
+		public int getUnsortedCount()
+		{
+			return getFilledCount() - Chunk.this.sortedCount;
+		}
+
+		void addLookupHops(int hops)
+		{
+			lookupHops += hops;
+		}
+
+		/***
+		 *
+		 * @return Approximate # of items passed by lookups walking the list past the sorted prefix,
+		 * i.e., lookup work compaction would save. Only long walks are counted (see LOOKUP_HOPS_SAMPLE)
+		 */
+		public int getLookupHops()
+		{
+			return lookupHops;
+		}
 	}
 
 	/***************	Constructors		***************/
@@ -341,6 +688,15 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 	public Chunk(K minKey, int dataItemSize, Chunk<K,V> creator, boolean delayForLinearizabilityTesting,
                  LowerUpperBounds sizeBounds) {
+        this(minKey, dataItemSize, creator, delayForLinearizabilityTesting, sizeBounds, MAX_ITEMS);
+    }
+
+	/**
+	 * Create a new chunk
+	 * @param capacity	max # of items the chunk holds
+	 */
+	public Chunk(K minKey, int dataItemSize, Chunk<K,V> creator, boolean delayForLinearizabilityTesting,
+                 LowerUpperBounds sizeBounds, int capacity) {
 
         // allocate space for head item (only "next", starts pointing to NONE==0)
         this.orderIndex = new AtomicInteger(FIRST_ITEM);
@@ -348,11 +704,17 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
         this.orderIndexSerial = FIRST_ITEM;
         this.dataIndexSerial = FIRST_ITEM;
 
-        // allocate space for MAX_ITEMS, and add FIRST_ITEM (size of head) for order array
+        // allocate space for capacity items, and add FIRST_ITEM (size of head) for order array
         //this.orderArray = new AtomicIntegerArray(MAX_ITEMS * ORDER_SIZE + FIRST_ITEM);	// initialized to 0, i.e., NONE
-        this.orderArray = new int[MAX_ITEMS * ORDER_SIZE + FIRST_ITEM];
-        this.dataArray = new Object[MAX_ITEMS + 1];
-        this.putArray = new PutData[KiWi.MAX_THREADS * (PAD_SIZE + 1)];
+        this.capacity = capacity;
+        this.orderLength = capacity * ORDER_SIZE + FIRST_ITEM;
+        this.orderArray = newOrderArray(orderLength);
+        this.versions = newVersionArray(capacity);
+        this.dataCapacity = capacity + 1;
+        this.dataArray = newDataArray(dataCapacity);
+        this.id = nextId.incrementAndGet();
+        this.bloom = (KiWi.BloomFilters && filtersKeys()) ?
+                new long[Math.max(1, (capacity * BLOOM_BITS_PER_ITEM + Long.SIZE - 1) / Long.SIZE)] : null;
 
         this.children = new AtomicReference<>(null);
 
@@ -392,7 +754,82 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	public abstract Object readData(int orderIndex, int dataIndex);
 
 	/** should CLONE minKey as needed */
-	public abstract Chunk<K,V>	newChunk(K minKey);
+	public abstract Chunk<K,V>	newChunk(K minKey, int capacity);
+
+	/** creates a chunk of the default capacity (MAX_ITEMS) */
+	public Chunk<K,V> newChunk(K minKey)
+	{
+		return newChunk(minKey, MAX_ITEMS);
+	}
+
+	/***************	Storage Hooks		***************/
+
+	/** allocates the order array. chunks keeping their order array elsewhere (e.g. off-heap) override this
+	 * to return null, and override get, set and cas. called from the constructor - must not depend on subclass state */
+	protected int[] newOrderArray(int length)
+	{
+		return new int[length];
+	}
+
+	/** allocates the versions of capacity items. chunks keeping their versions elsewhere (e.g. off-heap) override
+	 * this to return null, and override getVersionField, setVersionField and casVersionField.
+	 * called from the constructor - must not depend on subclass state */
+	protected long[] newVersionArray(int capacity)
+	{
+		return new long[capacity];
+	}
+
+	/** allocates the object data array. chunks keeping their data elsewhere (e.g. in a primitive array)
+	 * override this to return null. called from the constructor - must not depend on subclass state */
+	protected Object[] newDataArray(int capacity)
+	{
+		return new Object[capacity];
+	}
+
+	/** copies 'length' data slots of srcChunk starting at srcIdx into this chunk's data array at destIdx */
+	protected void copyData(Chunk<K,V> srcChunk, int srcIdx, int destIdx, int length)
+	{
+		if (length == 1)
+			dataArray[destIdx] = srcChunk.dataArray[srcIdx];
+		else
+			System.arraycopy(srcChunk.dataArray, srcIdx, dataArray, destIdx, length);
+	}
+
+	/** @return true if the chunk keeps memory outside the heap, which must be freed by release() */
+	public boolean isOffHeap()
+	{
+		return false;
+	}
+
+	/** frees memory kept outside the heap. the chunk must not be accessed afterwards,
+	 * so it may be called only once the chunk is unreachable by any thread */
+	public void release()
+	{
+	}
+
+	/** compares the keys of two items of this chunk */
+	protected int compareKeys(int orderIndex1, int orderIndex2)
+	{
+		return readKey(orderIndex1).compareTo(readKey(orderIndex2));
+	}
+
+	/** compares the key of the given item to key. chunks override this to compare without materializing the item's key */
+	protected int compareKey(int orderIndex, K key)
+	{
+		return readKey(orderIndex).compareTo(key);
+	}
+
+	/***
+	 * Copies the key of an item of srcChunk (of the same type) into this chunk. Called only while this chunk is
+	 * accessible by a single thread (compaction).
+	 *
+	 * @param orderIndex the item of this chunk the key is copied to
+	 * @return value to be stored in the OFFSET_KEY field of the copied item
+	 */
+	protected int copyKey(Chunk<K,V> srcChunk, int srcOrderIndex, int orderIndex)
+	{
+		return srcChunk.get(srcOrderIndex, OFFSET_KEY);
+	}
 
 	/***************	Methods				***************/
 
@@ -429,7 +866,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			return getData(current);
 		}
 
-		final public int getVersion() {
+		final public long getVersion() {
 			return Chunk.this.getVersion(current);
 		}
 
@@ -453,7 +890,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			}
 
 
-			final public int getVersion() {
+			final public long getVersion() {
 				return Chunk.this.getVersion(current);
 			}
 
@@ -463,7 +900,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				int next = get(current,OFFSET_NEXT);
 
 				if(next == Chunk.NONE) return false;
-				return readKey(current).compareTo(readKey(next)) == 0;
+				return compareKeys(current, next) == 0;
 			}
 
 
@@ -508,6 +945,12 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			return (V)readData(orderIndex, di);
 	}
 
+	/** @return true if the given item is a removal (i.e., has no data) */
+	public final boolean isRemoved(int orderIndex)
+	{
+		return get(orderIndex, OFFSET_DATA) < 0;
+	}
+
 	public boolean isInfant()
 	{
 		return creator != null;
@@ -524,30 +967,343 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	/** gets the field of specified offset for given item */
 	protected int get(int item, int offset)
 	{
-		return orderArray[item+offset];
+		int[] arr = orderArray;
+		if (arr != null)
+			return arr[item+offset];
+
+		return getPacked(item, offset);
 	}
-	/** sets the field of specified offset to 'value' for given item */
+	/** sets the field of specified offset to 'value' for given item.
+	 * set and cas are only applied to allocated items - so never while packed (see ensureMutable) */
 	protected void set(int item, int offset, int value)
 	{
 		orderArray[item+offset] = value;
 	}
 
 	/** performs CAS from 'expected' to 'value' for field at specified offset of given item */
-	private boolean cas(int item, int offset, int expected, int value)
+	protected boolean cas(int item, int offset, int expected, int value)
 	{
 		return unsafe.compareAndSwapInt(orderArray,
 			Unsafe.ARRAY_INT_BASE_OFFSET + (item + offset) * Unsafe.ARRAY_INT_INDEX_SCALE,
 			expected, value);
 	}
+
+	/** gets the version field of the given item - negative while the item is not linked (see getVersion).
+	 * read whole, as are all version fields - a 64 bit field is never torn */
+	protected long getVersionField(int item)
+	{
+		return unsafe.getLongVolatile(versions, versionOffset(item));
+	}
+
+	/** sets the version field of the given item (an ordered write) */
+	protected void setVersionField(int item, long value)
+	{
+		unsafe.putOrderedLong(versions, versionOffset(item), value);
+	}
+
+	/** performs CAS from 'expected' to 'value' on the version field of the given item */
+	protected boolean casVersionField(int item, long expected, long value)
+	{
+		return unsafe.compareAndSwapLong(versions, versionOffset(item), expected, value);
+	}
+
+	private static long versionOffset(int item)
+	{
+		return Unsafe.ARRAY_LONG_BASE_OFFSET + (long) (item / ORDER_SIZE) * Unsafe.ARRAY_LONG_INDEX_SCALE;
+	}
+
+	/***************	Packed Layout		***************/
+
+	/***
+	 * Switches a fully sorted chunk to the packed layout: keys and data indexes in separate arrays sized to its
+	 * items, with implicit next pointers - so lookups are a binary search over packed keys, and the chunk takes
+	 * 2 ints per item rather than ORDER_SIZE per item of capacity. Versions are kept apart anyway, and stay.
+	 * The first allocation switches it back.
+	 * Must be called before the chunk is published (i.e., by compaction).
+	 * @return false if the chunk is not fully sorted, or keeps its order array elsewhere
+	 */
+	boolean pack()
+	{
+		int[] arr = orderArray;
+		int count = sortedCount;
+		if ((arr == null) || (orderIndex.get() != FIRST_ITEM + count*ORDER_SIZE))
+			return false;
+
+		if (arr[HEAD_NODE + OFFSET_NEXT] != ((count > 0) ? FIRST_ITEM : NONE))
+			return false;
+
+		int[] keys = new int[count];
+		int[] data = new int[count];
+		boolean hasKeys = false;
+
+		for (int i = 0, oi = FIRST_ITEM; i < count; ++i, oi += ORDER_SIZE)
+		{
+			// compaction links items in order - but do not rely on it
+			if (arr[oi + OFFSET_NEXT] != ((i + 1 < count) ? oi + ORDER_SIZE : NONE))
+				return false;
+
+			keys[i] = arr[oi + OFFSET_KEY];
+			data[i] = arr[oi + OFFSET_DATA];
+			hasKeys |= (keys[i] != NONE);
+		}
+
+		packedCount = count;
+		// the search keys are the same keys - share them
+		packedKeys = (searchKeys != null) ? searchKeys : (hasKeys ? keys : null);
+		packedData = data;
+		orderArray = null;
+
+		return true;
+	}
+
+	/** @return true if the chunk is in the packed layout (see pack) */
+	public final boolean isPacked()
+	{
+		return (orderArray == null) && (packedData != null);
+	}
+
+	private int getPacked(int item, int offset)
+	{
+		if (item == HEAD_NODE)
+			return (packedCount > 0) ? FIRST_ITEM : NONE;
+
+		int i = (item - FIRST_ITEM) / ORDER_SIZE;
+		if (i >= packedCount)
+		{
+			// an item allocated after we found the chunk packed - it is in the order array by now
+			return orderArray[item+offset];
+		}
+
+		switch (offset)
+		{
+			case OFFSET_NEXT:		return (i + 1 < packedCount) ? item + ORDER_SIZE : NONE;
+			case OFFSET_KEY:		return (packedKeys == null) ? NONE : packedKeys[i];
+			default:				return packedData[i];
+		}
+	}
+
+	/** @return the updater of orderArray, typed for chunks of any keys and values (Chunk.class is raw) */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static AtomicReferenceFieldUpdater<Chunk<?,?>,int[]> newOrderArrayUpdater()
+	{
+		return (AtomicReferenceFieldUpdater) AtomicReferenceFieldUpdater.newUpdater(Chunk.class, int[].class, "orderArray");
+	}
+
+	/** switches a packed chunk back to the order array, before the first allocation in it.
+	 * the packed arrays are immutable, so concurrent switches build the same array - the first one is kept */
+	private void ensureMutable()
+	{
+		if ((orderArray != null) || (packedData == null))
+			return;
+
+		int[] arr = newOrderArray(orderLength);
+		arr[HEAD_NODE + OFFSET_NEXT] = (packedCount > 0) ? FIRST_ITEM : NONE;
+
+		for (int i = 0, oi = FIRST_ITEM; i < packedCount; ++i, oi += ORDER_SIZE)
+		{
+			arr[oi + OFFSET_NEXT] = (i + 1 < packedCount) ? oi + ORDER_SIZE : NONE;
+			arr[oi + OFFSET_KEY] = (packedKeys == null) ? NONE : packedKeys[i];
+			arr[oi + OFFSET_DATA] = packedData[i];
+		}
+
+		orderArrayUpdater.compareAndSet(this, null, arr);
+	}
 	
+	/***************	Bloom Filter		***************/
+
+	/***
+	 * The Bloom filter answers most lookups of keys absent from the chunk without searching it. It is blocked: the
+	 * BLOOM_HASHES bits of a key are in a single word, so a lookup reads one cache line. Bits are only ever set - by
+	 * copying (i.e., compaction, see copyPart) and by allocation, before the put is visible to anyone (it is
+	 * versioned after publishPut) - so a lookup that starts after a put took effect sees its bits.
+	 * Kept for chunks with int or long keys (filtersKeys), whose hash agrees with key comparison.
+	 * @return false if no item of the chunk has the key, true if one might
+	 */
+	public final boolean mayContain(K key)
+	{
+		return (bloom == null) || mayContainHash(keyHash(key));
+	}
+
+	/** int-key counterpart of mayContain, for chunks that keepsIntKeys() */
+	public final boolean mayContainInt(int key)
+	{
+		return (bloom == null) || mayContainHash(hashInt(key));
+	}
+
+	/** long-key counterpart of mayContain, for ChunkLong */
+	public final boolean mayContainLong(long key)
+	{
+		return (bloom == null) || mayContainHash(hashLong(key));
+	}
+
+	private boolean mayContainHash(long hash)
+	{
+		long bits = bloomBits(hash);
+		return (unsafe.getLongVolatile(bloom, bloomOffset(hash)) & bits) == bits;
+	}
+
+	/** adds the key of the given item to the filter (if kept) - concurrent adds don't lose bits.
+	 * called by allocate once the key is written */
+	protected final void addToFilter(int orderIndex)
+	{
+		if (bloom == null)
+			return;
+
+		long hash = itemHash(orderIndex);
+		long offset = bloomOffset(hash);
+		long bits = bloomBits(hash);
+
+		long word;
+		do
+		{
+			word = unsafe.getLongVolatile(bloom, offset);
+			if ((word & bits) == bits)
+				return;
+		}
+		while (!unsafe.compareAndSwapLong(bloom, offset, word, word | bits));
+	}
+
+	/** @return address (relative to the filter) of the word of the hash - picked by its high bits */
+	private long bloomOffset(long hash)
+	{
+		int word = (int) (((hash >>> 32) * bloom.length) >>> 32);
+		return Unsafe.ARRAY_LONG_BASE_OFFSET + (long) word * Unsafe.ARRAY_LONG_INDEX_SCALE;
+	}
+
+	/** @return the bits of the hash within its word - picked by its low bits */
+	private static long bloomBits(long hash)
+	{
+		long bits = 0;
+		for (int i = 0; i < BLOOM_HASHES; ++i)
+			bits |= 1L << (hash >>> (i * 6));
+
+		return bits;
+	}
+
+	/** @return true for chunks whose keys have a hash that agrees with key comparison (see mayContain) */
+	protected boolean filtersKeys()
+	{
+		return keepsIntKeys();
+	}
+
+	/** @return hash of key - must be the hash itemHash returns for an item with the key */
+	protected long keyHash(K key)
+	{
+		return hashInt(intKey(key));
+	}
+
+	/** @return hash of the key of the given item */
+	protected long itemHash(int orderIndex)
+	{
+		return hashInt(get(orderIndex, OFFSET_KEY));
+	}
+
+	protected static long hashInt(int key)
+	{
+		return hashLong(key);
+	}
+
+	/** @return key with its bits mixed (the finalizer of SplitMix64) */
+	protected static long hashLong(long key)
+	{
+		long h = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+		return h ^ (h >>> 31);
+	}
+
+	/** adds the filter's size and the false positive rate it is expected to have to ds: a lookup of an absent key
+	 * lands in a word with b bits set, and passes with probability (b/64)^BLOOM_HASHES */
+	private void debugCalcFilterCounters(DebugStats ds)
+	{
+		if (bloom == null)
+			return;
+
+		ds.bloomFilterBytes += (long) bloom.length * Long.BYTES;
+		ds.bloomFilterWords += bloom.length;
+		for (long word : bloom)
+			ds.bloomFalsePositives += Math.pow((double) Long.bitCount(word) / Long.SIZE, BLOOM_HASHES);
+	}
+
+	/***************	Search Layout		***************/
+
+	/***
+	 * Materializes the keys of the sorted prefix in a blocked (B+-tree like) layout: the keys contiguous, and the
+	 * first key of each block of SEARCH_BLOCK keys in a small array that stays cached. A lookup is then a binary search
+	 * over the blocks and a scan of a single cache line, instead of a binary search probing keys ORDER_SIZE ints
+	 * apart - a cache miss per probe. Only for chunks keeping int keys in the order array (see keepsIntKeys).
+	 * Must be called before the chunk is published (i.e., by compaction) - the sorted prefix never changes afterwards.
+	 */
+	void buildSearchIndex()
+	{
+		int count = sortedCount;
+		if (!keepsIntKeys() || (count == 0))
+			return;
+
+		int[] keys = new int[count];
+		for (int i = 0; i < count; ++i)
+			keys[i] = get(i * ORDER_SIZE + FIRST_ITEM, OFFSET_KEY);
+
+		int[] blocks = new int[(count + SEARCH_BLOCK - 1) / SEARCH_BLOCK];
+		for (int b = 0; b < blocks.length; ++b)
+			blocks[b] = keys[b * SEARCH_BLOCK];
+
+		searchKeys = keys;
+		searchBlocks = blocks;
+	}
+
+	/** @return true for chunks keeping the key itself in the OFFSET_KEY field (see intKey) */
+	protected boolean keepsIntKeys()
+	{
+		return false;
+	}
+
+	/** @return key as kept in the OFFSET_KEY field - only for chunks that keepsIntKeys() */
+	protected int intKey(K key)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/** blocked search layout counterpart of binaryFindInt */
+	private int blockFind(int key)
+	{
+		int[] keys = searchKeys;
+		int[] blocks = searchBlocks;
+
+		if (keys[0] >= key)
+			return HEAD_NODE;
+
+		// last block whose first key is smaller than key
+		int start = 0;
+		int end = blocks.length;
+
+		while (end - start > 1)
+		{
+			int curr = (start + end) >>> 1;
+
+			if (blocks[curr] >= key)
+				end = curr;
+			else
+				start = curr;
+		}
+
+		// last key of the block smaller than key (its first key is) - whole blocks are compared, as vectors align to them
+		int i = start * SEARCH_BLOCK;
+		i += BlockSearch.instance.countLess(keys, i, Math.min(i + SEARCH_BLOCK, keys.length), key) - 1;
+
+		return i * ORDER_SIZE + FIRST_ITEM;
+	}
+
 	/** binary search for largest-entry smaller than 'key' in sorted part of order-array.
 	 * @return the index of the entry from which to start a linear search -
 	 * if key is found, its previous entry is returned! */
 	private int binaryFind(K key)
 	{
+		if (searchKeys != null)
+			return blockFind(intKey(key));
+
 		// if there are no sorted keys,or the first item is already larger than key -
 		// return the head node for a regular linear search
-		if ((sortedCount == 0) || (readKey(FIRST_ITEM).compareTo(key) >= 0))
+		if ((sortedCount == 0) || (compareKey(FIRST_ITEM, key) >= 0))
 			return HEAD_NODE;
 		
 		// TODO check last key to avoid binary search?
@@ -559,7 +1315,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		{
 			int curr = start + (end - start) / 2;
 			
-			if (readKey(curr * ORDER_SIZE + FIRST_ITEM).compareTo(key) >= 0)
+			if (compareKey(curr * ORDER_SIZE + FIRST_ITEM, key) >= 0)
 				end = curr;
 			else
 				start = curr;
@@ -568,6 +1324,31 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return start * ORDER_SIZE + FIRST_ITEM;
 	}
 
+	/** int-key counterpart of binaryFind, for chunks keeping the key itself in the order array */
+	private int binaryFindInt(int key)
+	{
+		if (searchKeys != null)
+			return blockFind(key);
+
+		if ((sortedCount == 0) || (get(FIRST_ITEM, OFFSET_KEY) >= key))
+			return HEAD_NODE;
+
+		int start = 0;
+		int end = sortedCount;
+
+		while (end - start > 1)
+		{
+			int curr = start + (end - start) / 2;
+
+			if (get(curr * ORDER_SIZE + FIRST_ITEM, OFFSET_KEY) >= key)
+				end = curr;
+			else
+				start = curr;
+		}
+
+		return start * ORDER_SIZE + FIRST_ITEM;
+	}
+
 	/***
 	 * Engage the chunk to a rebalancer r.
 	 *
@@ -643,13 +1424,14 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		int numItems = 0;
 
 		// prevent new puts to the chunk
-		orderIndex.addAndGet(orderArray.length);
+		orderIndex.addAndGet(orderLength);
 
-		// go over thread data of all threads
-		for (int i = 0; i < KiWi.MAX_THREADS; ++i) {
+		// go over thread data of all registered threads
+		int slots = ThreadRegistry.maxSlots();
+		for (int i = 0; i < slots; ++i) {
 			// make sure data is for a Put operatio
-			PutData<K, V> currPut = putArray[pad(i)];
-			if (currPut == null)
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
 				continue;
 /*
 			if(currPut.chunk != this)
@@ -657,38 +1439,55 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				continue;
 			}
 */
-			int idx = currPut.orderIndex;
-			int version = getVersion(idx);
-
-			// if item is frozen, ignore it - so only handle non-frozen items
-			if (version != FREEZE_VERSION)
+			// a run of a batch put - handle each of its items (unless the batch put is done with it)
+			if (currOi < NONE)
 			{
-				// if item has no version, try to freeze it
-				if (version == NONE)
-				{
-					// set version to FREEZE so put op knows to restart
-					// if succeeded - item will not be in this chunk, we can continue to next item
-					if ((cas(idx, OFFSET_VERSION, NONE, FREEZE_VERSION)) ||
-							(getVersion(idx) == FREEZE_VERSION))
-					{
-						continue;
-					}
-				}
+				int last = publishedRunLast(i, -currOi);
+				int ancor = NONE;
+				for (int oi = -currOi; (last != NONE) && (oi <= last); oi += ORDER_SIZE)
+					ancor = freezeItem(oi, ancor);
 
-				// if we reached here then item has a version - we need to help by adding item to chunk's list
-				// we need to help the pending put operation add itself to the list before proceeding
-				// to make sure a frozen chunk is actually frozen - all items are fully added
-				addToList(idx, readKey(idx));
+				continue;
+			}
 
+			freezeItem(currOi, NONE);
+		}
+
+	}
+
+	/** freezes a published item that has no version, otherwise helps adding it to the list
+	 * @param ancor a linked item with a smaller key to start the search at, or NONE (see linkRunItem)
+	 * @return the item if it is linked, otherwise NONE */
+	private int freezeItem(int idx, int ancor)
+	{
+		long version = getVersion(idx);
+
+		// if item is frozen, ignore it - so only handle non-frozen items
+		if (version == FREEZE_VERSION)
+			return NONE;
+
+		// if item has no version, try to freeze it
+		if (version == NONE)
+		{
+			// set version to FREEZE so put op knows to restart
+			// if succeeded - item will not be in this chunk, we can continue to next item
+			if ((casVersionField(idx, NONE, FREEZE_VERSION)) ||
+					(getVersion(idx) == FREEZE_VERSION))
+			{
+				return NONE;
 			}
 		}
 
+		// if we reached here then item has a version - we need to help by adding item to chunk's list
+		// we need to help the pending put operation add itself to the list before proceeding
+		// to make sure a frozen chunk is actually frozen - all items are fully added
+		return linkRunItem(idx, ancor);
 	}
 	
 	/** finds and returns the index of the first item that is equal or larger-than the given min key
 	 * with max version that is equal or less-than given version.
 	 * returns NONE if no such key exists */
-	public int findFirst(K minKey, int version)
+	public int findFirst(K minKey, long version)
 	{
 		// binary search sorted part of order-array to quickly find node to start search at
 		// it finds previous-to-key so start with its next
@@ -697,10 +1496,8 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		// iterate until end of list (or key is found)
 		while (curr != NONE)
 		{
-			K key = readKey(curr);
-
 			// if item's key is larger or equal than min - we've found a matching key
-			if (key.compareTo(minKey) >= 0)
+			if (compareKey(curr, minKey) >= 0)
 			{
 				// check for valid version
 				if (getVersion(curr) <= version)
@@ -714,9 +1511,25 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		
 		return NONE;
 	}
+
+	/** int-key counterpart of findFirst, for chunks keeping the key itself in the order array */
+	public int findFirstInt(int minKey, long version)
+	{
+		int curr = get(binaryFindInt(minKey), OFFSET_NEXT);
+
+		while (curr != NONE)
+		{
+			if ((get(curr, OFFSET_KEY) >= minKey) && (getVersion(curr) <= version))
+				return curr;
+
+			curr = get(curr, OFFSET_NEXT);
+		}
+
+		return NONE;
+	}
 	
 	/** returns the index of the first item in this chunk with a version <= version */
-	public int getFirst(int version)
+	public int getFirst(long version)
 	{
 		int curr = get(HEAD_NODE, OFFSET_NEXT);
 		
@@ -735,16 +1548,14 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return NONE;
 	}
 	
-	final public int findNext(int curr, int version, K key)
+	final public int findNext(int curr, long version, K key)
 	{
 		curr = get(curr, OFFSET_NEXT);
 		
 		while (curr != NONE)
 		{
-			K currKey = readKey(curr);
-			
 			// if in a valid version, and a different key - found next item
-			if ((currKey.compareTo(key) != 0) && (getVersion(curr) <= version))
+			if ((compareKey(curr, key) != 0) && (getVersion(curr) <= version))
 			{
 				return curr;
 			}
@@ -756,18 +1567,20 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return NONE;
 	}
 	
-	/** finds and returns the value for the given key, or 'null' if no such key exists */
-	public V find(K key, PutData<K,V> item)
+	/** finds and returns the value for the given key, or 'null' if no such key exists
+	 * @param pendingOi order index of the newest pending put of key (see helpPutInGet), or NONE */
+	public V find(K key, int pendingOi)
 	{
 		// binary search sorted part of order-array to quickly find node to start search at
 		// it finds previous-to-key so start with its next
 		int curr = get(binaryFind(key), OFFSET_NEXT);
+		int hops = 0;
 
 		// iterate until end of list (or key is found)
 		while (curr != NONE)
 		{
 			// compare current item's key to searched key
-			int cmp = readKey(curr).compareTo(key);
+			int cmp = compareKey(curr, key);
 			
 			// if item's key is larger - we've exceeded our key
 			// it's not in chunk - no need to search further
@@ -776,45 +1589,89 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
             }
 			// if keys are equal - we've found the item
 			else if (cmp == 0) {
-                return chooseNewer(curr, item);
+				countLookupHops(hops);
+                return chooseNewer(curr, pendingOi);
             }
 			// otherwise- proceed to next item
-			else
+			else {
 				curr = get(curr, OFFSET_NEXT);
+				hops++;
+			}
 		}
-        if(item != null && get(item.orderIndex, OFFSET_KEY) == (Integer)key){
-            return getData(item.orderIndex);
+		countLookupHops(hops);
+        if(pendingOi != NONE && compareKey(pendingOi, key) == 0){
+            return getData(pendingOi);
         }
 		return null;
 	}
 	
-	private V chooseNewer(int item, PutData<K,V> pd)
+	/** int-key counterpart of find, for chunks keeping the key itself in the order array
+	 * @param pendingOi order index of the newest pending put of key (see helpPutInGetInt), or NONE
+	 * @return order index of the newest item matching key (possibly a removal), or NONE if no such key exists */
+	public int findInt(int key, int pendingOi)
 	{
-		// if pd is empty or in different chunk, then item is definitely newer
+		int curr = get(binaryFindInt(key), OFFSET_NEXT);
+		int hops = 0;
+
+		while (curr != NONE)
+		{
+			int currKey = get(curr, OFFSET_KEY);
+
+			if (currKey > key)
+				break;
+			else if (currKey == key)
+			{
+				countLookupHops(hops);
+				return chooseNewerItem(curr, pendingOi);
+			}
+			else
+			{
+				curr = get(curr, OFFSET_NEXT);
+				hops++;
+			}
+		}
+
+		countLookupHops(hops);
+		return pendingOi;
+	}
+
+	/** records a long walk of a lookup past the sorted prefix - short ones are not worth a write */
+	protected final void countLookupHops(int hops)
+	{
+		if (hops > LOOKUP_HOPS_SAMPLE)
+			statistics.addLookupHops(hops);
+	}
+	
+	private V chooseNewer(int item, int pendingOi)
+	{
+		// if there is no pending put in this chunk, then item is definitely newer
 		// it's true since put() publishes after finding a chunk, and get() finds chunk only after reading thread-array
 		// so get() definitely sees the same chunks put() sees, or NEWER chunks
-		if ((pd == null)
-				//|| (pd.chunk != this)
-				)
-			return getData(item);
-		
+		return getData(chooseNewerItem(item, pendingOi));
+	}
+
+	protected int chooseNewerItem(int item, int pendingOi)
+	{
+		if (pendingOi == NONE)
+			return item;
+
 		// if same chunk then regular comparison (version, then orderIndex)
-		int itemVer = getVersion(item);
-		int dataVer = getVersion(pd.orderIndex);
+		long itemVer = getVersion(item);
+		long dataVer = getVersion(pendingOi);
 
 		if (itemVer > dataVer)
-			return getData(item);
+			return item;
 		else if (dataVer > itemVer)
-			return getData(pd.orderIndex);
+			return pendingOi;
 		else {
             // same version - return latest item by order in order-array
             // Correction - return latest item by order in data array.
             int d1 = get(item, OFFSET_DATA);
-            int d2 = get(pd.orderIndex, OFFSET_DATA);
+            int d2 = get(pendingOi, OFFSET_DATA);
             if(Math.abs(d1) > Math.abs(d2)){
-                return getData(item);
+                return item;
             }else{
-                return getData(pd.orderIndex);
+                return pendingOi;
             }
         }
 	}
@@ -823,19 +1680,54 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	 * @param orderIndex index of item in order-array
 	 * @param key given for convenience */
 	public final void addToList(final int orderIndex, K key)
+	{
+		addToList(orderIndex, binaryFind(key));
+	}
+
+	/** int-key counterpart of addToList(int, K), for chunks keeping the key itself in the order array */
+	public final void addToListInt(final int orderIndex, int key)
+	{
+		addToList(orderIndex, binaryFindInt(key));
+	}
+
+	/** binary search for the entry from which to start a linear search for the key of the given item */
+	private int binaryFindItem(int orderIndex)
+	{
+		if (searchKeys != null)
+			return blockFind(get(orderIndex, OFFSET_KEY));
+
+		if ((sortedCount == 0) || (compareKeys(FIRST_ITEM, orderIndex) >= 0))
+			return HEAD_NODE;
+
+		int start = 0;
+		int end = sortedCount;
+
+		while (end - start > 1)
+		{
+			int curr = start + (end - start) / 2;
+
+			if (compareKeys(curr * ORDER_SIZE + FIRST_ITEM, orderIndex) >= 0)
+				end = curr;
+			else
+				start = curr;
+		}
+
+		return start * ORDER_SIZE + FIRST_ITEM;
+	}
+
+	/** links the given item into the chunk's linked list, starting the search at ancor */
+	protected final void addToList(final int orderIndex, final int ancor)
 	{
 		int prev, curr;
-		int ancor = -1;
-		boolean dataIsNull = (getData(orderIndex) == null);
+		boolean dataIsNull = isRemoved(orderIndex);
 		// retry adding to list until successful
 		// no items are removed from list - so we don't need to restart on failures
 		// so if we CAS some node's next and fail, we can continue from it
 		// --retry so long as version is negative (which means item isn't in linked-list)
-		while (get(orderIndex, OFFSET_VERSION) < 0) {
+		while (getVersionField(orderIndex) < 0) {
 			// remember next pointer in entry we're trying to add
 			int savedNext = get(orderIndex, OFFSET_NEXT);
 			 // start iterating from quickly-found node (by binary search) in sorted part of order-array
-			if(ancor == -1) ancor = binaryFind(key);
 			curr = ancor;
 			int cmp = -1;
 			boolean encounteredHigherVersion = false;
@@ -854,7 +1746,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
                 }
 
 				// compare current item's key to ours
-				cmp = readKey(curr).compareTo(key);
+				cmp = compareKeys(curr, orderIndex);
 
 				// if current item's key is larger, done searching - add between prev and curr
 				if (cmp > 0)
@@ -868,8 +1760,8 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 						return;
 					}
 
-					int verMine = getVersion(orderIndex);
-					int verNext = getVersion(curr);
+					long verMine = getVersion(orderIndex);
+					long verNext = getVersion(curr);
 					// if current item's version is smaller, done searching - larger versions are first in list
 					if(verNext < verMine) {
                         break;
@@ -891,7 +1783,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
                             if (!sizeBounds.isFake && Math.abs(newDataIdx) > Math.abs(oldDataIdx)) {
                                 // cas happened.
                                 if(encounteredHigherVersion) {
-                                    sizeBounds.undoPut(null == getData(orderIndex));
+                                    sizeBounds.undoPut(dataIsNull);
                                 }else {// We need synchronized access to prev.next, due to JavaMemoryModel.
                                     if (cas(prev, OFFSET_NEXT, curr, curr)) {
                                         // prev still points to curr - we are certain that this is the highest version.
@@ -930,7 +1822,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 					Utils.randomDelay(delayForLinearizabilityTesting, 10);
 					// if some CAS failed we restart, if both successful - we're done
 					// update version to positive (getVersion() always returns positive number) to mark item is linked
-					set(orderIndex, OFFSET_VERSION, getVersion(orderIndex));
+					setVersionField(orderIndex, getVersion(orderIndex));
 //                    System.out.format("inserting tid=%d\n", KiWi.threadId());
 					// We just added an element.
 
@@ -953,6 +1845,12 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 					{
 						statistics.incrementDuplicates();
 					}
+					// a removal is dropped by compaction as well (unless a scan needs it),
+					// so chunks emptied by removals are seen as sparse by the rebalance policy
+					if(dataIsNull)
+					{
+						statistics.incrementRemoved();
+					}
 
 					break;
 				}
@@ -977,16 +1875,38 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	 * @param value the value of the new item
 	 * @param version the version of the new item
      */
-	public final void appendItem(int key, V value, int version)
+	public final void appendItem(int key, V value, long version)
+	{
+		linkAppended(allocateSerial(key,value), version);
+	}
+
+	/***
+	 * Same as appendItem, but copies the value from a data slot of srcChunk instead of taking it as an object.
+	 * The method is not thread safe!!!  Should be called for  chunks accessible by single thread only.
+	 *
+	 * @param srcOrderIndex item of srcChunk whose key is copied
+	 * @param srcDataId data index of the value in srcChunk, or a non-positive index for a removed item
+	 */
+	private void appendCopy(Chunk<K,V> srcChunk, int srcOrderIndex, int srcDataId, long version)
 	{
-		int oiDest = allocateSerial(key,value);
+		int oiDest = baseAllocateSerial(srcDataId > 0 ? 1 : 0);
+		set(oiDest, OFFSET_KEY, copyKey(srcChunk, srcOrderIndex, oiDest));
+
+		if (srcDataId > 0)
+			copyData(srcChunk, srcDataId, get(oiDest, OFFSET_DATA), 1);
+
+		linkAppended(oiDest, version);
+	}
 
+	private void linkAppended(int oiDest, long version)
+	{
 		// update to item's version (since allocation gives NONE version)
 		// version is positive so item is marked as linked
-		set(oiDest, Chunk.OFFSET_VERSION, version);
+		setVersionField(oiDest, version);
 
 		// update binary searches range
 		sortedCount++;
+		addToFilter(oiDest);
 
 		// handle adding of first item to empty chunk
 		int prev = oiDest - ORDER_SIZE;
@@ -1000,6 +1920,12 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 	}
 
+	/** @return max # of items the chunk holds */
+	public final int getCapacity()
+	{
+		return capacity;
+	}
+
 	public int getNumOfItems()
 	{
 		return orderIndex.get()/ORDER_SIZE;
@@ -1010,6 +1936,17 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return orderIndexSerial/ORDER_SIZE;
 	}
 
+	/** empties a chunk filled by copyPart (and never published), so copyPart may fill it again */
+	final void clearSerial()
+	{
+		orderIndexSerial = FIRST_ITEM;
+		dataIndexSerial = FIRST_ITEM;
+		orderIndex.set(FIRST_ITEM);
+		dataIndex.set(FIRST_ITEM);
+		sortedCount = 0;
+		set(HEAD_NODE, OFFSET_NEXT, NONE);
+	}
+
 	/***
 	 * Copies items from srcChunk performing compaction on the fly.
 	 * @param srcChunk -- chunk to copy from
@@ -1025,7 +1962,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 		if(orderIndexSerial >= maxIdx) return oi;
 
-		assert oi < orderArray.length - ORDER_SIZE;
+		// nothing linked in srcChunk - all items were copied
+		if(oi == NONE) return NONE;
+
+		assert oi < srcChunk.orderLength - ORDER_SIZE;
 
 		if(orderIndexSerial != FIRST_ITEM) {
 			set(orderIndexSerial - ORDER_SIZE, OFFSET_NEXT, orderIndexSerial);
@@ -1038,13 +1978,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		int orderStart = oi;
 		int orderEnd = orderStart - 1;
 
-		int currKey = NONE;
-		int prevKey = Integer.MIN_VALUE;
-
 		int currDataId = NONE;
 		int prevDataId = NONE;
 
-		int currVersion = NONE;
+		long currVersion = NONE;
 
 		int oiPrev = NONE;
 
@@ -1052,7 +1989,6 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 
 		while(true)
 		{
-			currKey = srcChunk.get(oi,OFFSET_KEY);
 			currDataId = srcChunk.get(oi, OFFSET_DATA);
 
 			int itemsToCopy = orderEnd - orderStart + 1;
@@ -1063,19 +1999,18 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 						(
 								(oiPrev < sortedSize)
 										&&
-								(prevKey != currKey)
-										&&
 								(oiPrev + ORDER_SIZE == oi)
 										&&
 								(orderIndexSerial +itemsToCopy*ORDER_SIZE <= maxIdx)
 									&&
 								(prevDataId + 1 == currDataId)
+									&&
+								(srcChunk.compareKeys(oiPrev, oi) != 0)
 						)))
 			{
 				orderEnd++;
 				isFirst = false;
 
-				prevKey = currKey;
 				oiPrev = oi;
 				oi = srcChunk.get(oi, OFFSET_NEXT);
 				prevDataId = currDataId;
@@ -1093,36 +2028,36 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 					int oIdx = orderIndexSerial;
 
 					// next should point to the next item
-					orderArray[oIdx + offset + OFFSET_NEXT] = oIdx + offset + ORDER_SIZE;
-					orderArray[oIdx + offset + OFFSET_VERSION] = Math.abs(srcChunk.orderArray[orderStart + offset + OFFSET_VERSION]);
-					orderArray[oIdx + offset + OFFSET_DATA] = dataIndexSerial + i;
-					orderArray[oIdx + offset + OFFSET_KEY] = srcChunk.orderArray[orderStart + offset + OFFSET_KEY];
+					set(oIdx + offset, OFFSET_NEXT, oIdx + offset + ORDER_SIZE);
+					setVersionField(oIdx + offset, srcChunk.getVersion(orderStart + offset));
+					set(oIdx + offset, OFFSET_DATA, dataIndexSerial + i);
+					set(oIdx + offset, OFFSET_KEY, copyKey(srcChunk, orderStart + offset, oIdx + offset));
+					addToFilter(oIdx + offset);
 				}
 
 				orderIndexSerial = orderIndexSerial + itemsToCopy * ORDER_SIZE;
 
 				int dataIdx = srcChunk.get(orderStart, OFFSET_DATA);
 
-				if (itemsToCopy == 1) {
-					dataArray[dataIndexSerial] = srcChunk.dataArray[dataIdx];
-				} else {
-
-					System.arraycopy(srcChunk.dataArray, dataIdx, dataArray, dataIndexSerial, itemsToCopy);
-				}
+				copyData(srcChunk, dataIdx, dataIndexSerial, itemsToCopy);
 
 				dataIndexSerial = dataIndexSerial + itemsToCopy;
 			}
 
-			scanIndex.reset(currKey);
-			//first item already copied or null
-			scanIndex.savedVersion(NONE);
-
+			scanIndex.reset(srcChunk, oi);
 			currVersion = srcChunk.getVersion(oi);
 
-			int removedVersion = NONE;
+			// the newest version of the key is kept - already copied if oi is an older version of the last copied
+			// key, otherwise oi is the newest (a removal, handled below, or the first of the next interval)
+			if(oi != NONE && oiPrev != NONE && srcChunk.compareKeys(oiPrev, oi) == 0)
+				scanIndex.savedVersion(srcChunk.getVersion(oiPrev));
+			else
+				scanIndex.savedVersion(currVersion);
+
+			long removedVersion = NONE;
 
 			// the case when we start from deleted item
-			if(prevKey != currKey && currDataId < 0) {
+			if(currDataId < 0 && oi != NONE && (oiPrev == NONE || srcChunk.compareKeys(oiPrev, oi) != 0)) {
 				// remove the item if it doesn't have versions to keep
 				removedVersion = currVersion;
 
@@ -1134,12 +2069,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 				currDataId = srcChunk.get(oi,OFFSET_DATA);
 
 				currVersion = srcChunk.getVersion(oi);
-				prevKey = currKey;
-				currKey = srcChunk.get(oi, OFFSET_KEY);
 			}
 
-			// copy versions of currKey if required by scanIndex, or skip to next key
-			while (oi != NONE && prevKey == currKey )
+			// copy versions of current key if required by scanIndex, or skip to next key
+			while (oi != NONE && srcChunk.compareKeys(oiPrev, oi) == 0)
 			{
 					if(scanIndex.shouldKeep(currVersion) )
 					{
@@ -1150,14 +2083,14 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 						}
 						else if(currVersion != removedVersion){
 							if (removedVersion != NONE) {
-								appendItem(currKey, null, removedVersion);
+								appendCopy(srcChunk, oi, NONE, removedVersion);
 								set(orderIndexSerial - ORDER_SIZE, OFFSET_NEXT, orderIndexSerial);
 								scanIndex.savedVersion(removedVersion);
 								removedVersion = NONE;
 							}
 
 
-							appendItem(currKey, (V) srcChunk.dataArray[currDataId], currVersion);
+							appendCopy(srcChunk, oi, currDataId, currVersion);
 							set(orderIndexSerial - ORDER_SIZE, OFFSET_NEXT, orderIndexSerial);
 							scanIndex.savedVersion(currVersion);
 						}
@@ -1170,8 +2103,6 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 					currDataId = srcChunk.get(oi,OFFSET_DATA);
 
 					currVersion = srcChunk.getVersion(oi);
-					prevKey = currKey;
-					currKey = srcChunk.get(oi, OFFSET_KEY);
 			}
 
 			if(oi == NONE || orderIndexSerial > maxIdx)
@@ -1198,9 +2129,11 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	 * @return index of allocated order-array item (can be used to get data-array index) */
 	protected final int baseAllocate(int dataSize)
 	{
+		ensureMutable();
+
 		// increment order array to get new index in it
 		int oi = orderIndex.getAndAdd(ORDER_SIZE);
-		if (oi+ORDER_SIZE > orderArray.length)
+		if (oi+ORDER_SIZE > orderLength)
 			return -1;
 
 		// increment data array to get new index in it
@@ -1208,7 +2141,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		// Assaf: My change - orderIndex and dataIndex should be the same, so entries may be ordered
         //        by dataIndex.
 		di = (oi + (ORDER_SIZE - FIRST_ITEM)) / ORDER_SIZE;
-		if (di >= dataArray.length)
+		if (di >= dataCapacity)
 			return -1;
 
 		// if there's data - allocate room for it
@@ -1222,19 +2155,49 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 		return oi;
 	}
 
+	/** allocates a run of count items with data, in consecutive entries of the order and data arrays -
+	 * by a single increment of each (see baseAllocate)
+	 * @return order index of the first item, or -1 if the chunk has no room for all of them */
+	protected final int baseAllocateRun(int count)
+	{
+		ensureMutable();
+
+		// claim the items only if all of them fit - unlike a single item, a run that does not fit would claim
+		// items a shorter run (or a single put) could still use. a frozen chunk has no room (see freeze)
+		int oi, di;
+		do
+		{
+			oi = orderIndex.get();
+			// data index of each item follows its order index, as in baseAllocate
+			di = (oi + (ORDER_SIZE - FIRST_ITEM)) / ORDER_SIZE;
+			if ((oi + count * ORDER_SIZE > orderLength) || (di + count > dataCapacity))
+				return -1;
+		}
+		while (!orderIndex.compareAndSet(oi, oi + count * ORDER_SIZE));
+
+		dataIndex.getAndAdd(count);
+
+		for (int i = 0; i < count; ++i)
+			set(oi + i * ORDER_SIZE, OFFSET_DATA, di + i);
+
+		return oi;
+	}
+
 	protected final int baseAllocateSerial(int dataSize) {
+		ensureMutable();
+
 
 		int oi = orderIndexSerial;
 		orderIndexSerial += ORDER_SIZE;
 
-		if (oi + ORDER_SIZE > orderArray.length)
+		if (oi + ORDER_SIZE > orderLength)
 			return -1;
 
 		// if there's data - allocate room for it
 		// otherwise DATA field of order-item is left as NONE
 		// increment data array to get new index in it
 		int di = dataIndexSerial;
-		if (di >= dataArray.length)
+		if (di >= dataCapacity)
 			return -1;
 
 		di = dataSize > 0 ? di : -di;
@@ -1251,16 +2214,16 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	}
 
 	/** gets the current version of the given order-item */
-	public int getVersion(int orderIndex)
+	public long getVersion(int orderIndex)
 	{
-		return Math.abs(get(orderIndex, OFFSET_VERSION));
+		return Math.abs(getVersionField(orderIndex));
 	}
 	/** tries to set (CAS) the version of order-item to specified version
 	 * @return whatever version is successfuly set (by this thread or another)	 */
-	public int setVersion(int orderIndex, int version)
+	public long setVersion(int orderIndex, long version)
 	{		
 		// try to CAS version from NO_VERSION to desired version
-		if (cas(orderIndex, OFFSET_VERSION, NONE, -version))
+		if (casVersionField(orderIndex, NONE, -version))
 			return version;
 		// if failed (someone else's CAS succeeded) - read version again and return it
 		else
@@ -1334,7 +2297,7 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 	public void debugCompacted()
 	{
 		int prevKey = get(FIRST_ITEM,OFFSET_KEY);
-		int prevVersion = get(FIRST_ITEM, OFFSET_VERSION);
+		long prevVersion = getVersionField(FIRST_ITEM);
 		int prevNext = get(FIRST_ITEM, OFFSET_NEXT);
 
 		if(get(HEAD_NODE,OFFSET_NEXT) != FIRST_ITEM)
@@ -1342,10 +2305,10 @@ public abstract class Chunk<K extends Comparable<? super K>,V>
 			throw new IllegalStateException();
 		}
 
-		for(int oi = FIRST_ITEM + ORDER_SIZE; oi < orderArray.length - ORDER_SIZE; oi += ORDER_SIZE)
+		for(int oi = FIRST_ITEM + ORDER_SIZE; oi < orderLength - ORDER_SIZE; oi += ORDER_SIZE)
 		{
 			int key = get(oi,OFFSET_KEY);
-			int version = get(oi, OFFSET_VERSION);
+			long version = getVersionField(oi);
 
 			if(prevKey >= key)
 			{
@@ -2,58 +2,248 @@ package kiwi;
 
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import java.util.SortedMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Variable-length key & value chunk. The key and value bytes of each item are packed contiguously into a per-chunk
+ * byte arena as length-prefixed records: [key length][key bytes][value length][value bytes].
+ * The KEY field of the order array holds the arena offset of the key, and the data array holds the arena offset
+ * of the value (items may switch data index, see addToList). Keys are compared directly against the arena bytes.
+ * A record is never modified once written, so Cells returned by readKey and readData are views into the arena.
+ */
 public class ChunkCell extends Chunk<Cell, Cell>
 {
 	private static final int DATA_SIZE = 100;		// average # of BYTES of item in data array (guesstimate)
-	
+	private static final int LEN_SIZE = 4;			// # of BYTES of a length field of a record
+
+	private byte[] arena;	// replaced (grown) only while the chunk is accessible by a single thread (compaction)
+	private final AtomicInteger arenaIndex = new AtomicInteger(0);	// points to next free byte of arena
+	private final int[] valueOffsets;	// data array - arena offset of the value record of each data index
+
 	public ChunkCell(boolean delayForLinearizabilityTesting)
 	{
-		this(Cell.Empty, null, delayForLinearizabilityTesting);
+		this(delayForLinearizabilityTesting, new LowerUpperBounds(true));
+	}
+	public ChunkCell(boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(Cell.Empty, null, delayForLinearizabilityTesting, sizeBounds);
 	}
 	public ChunkCell(Cell minKey, ChunkCell creator, boolean delayForLinearizabilityTesting)
 	{
-		super(minKey, DATA_SIZE, creator, delayForLinearizabilityTesting);
+		this(minKey, creator, delayForLinearizabilityTesting, new LowerUpperBounds(true));
+	}
+	public ChunkCell(Cell minKey, ChunkCell creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(minKey, creator, delayForLinearizabilityTesting, sizeBounds, MAX_ITEMS);
+	}
+	public ChunkCell(Cell minKey, ChunkCell creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds,
+					 int capacity)
+	{
+		super(minKey, DATA_SIZE, creator, delayForLinearizabilityTesting, sizeBounds, capacity);
+		// room for the largest record even in a small chunk
+		this.arena = new byte[Math.max(capacity * DATA_SIZE, maxRecordSize())];
+		this.valueOffsets = new int[capacity + 1];
+	}
+	@Override
+	public Chunk<Cell,Cell> newChunk(Cell minKey, int capacity)
+	{
+		return new ChunkCell(minKey.clone(), this, delayForLinearizabilityTesting, sizeBounds, capacity);
+	}
+
+	/** largest record a chunk accepts - a rebalanced chunk always has room for at least one such record */
+	private static int maxRecordSize()
+	{
+		return MAX_ITEMS * DATA_SIZE / 2;
+	}
+
+	/***************	Arena				***************/
+
+	@Override
+	protected Object[] newDataArray(int capacity)
+	{
+		// values are kept in the arena, pointed by valueOffsets
+		return null;
 	}
+
 	@Override
-	public Chunk<Cell,Cell> newChunk(Cell minKey)
+	protected void copyData(Chunk<Cell,Cell> srcChunk, int srcIdx, int destIdx, int length)
+	{
+		ChunkCell src = (ChunkCell) srcChunk;
+		for (int i = 0; i < length; ++i)
+			valueOffsets[destIdx + i] = copyRecord(src, src.valueOffsets[srcIdx + i]);
+	}
+
+	@Override
+	protected int copyKey(Chunk<Cell,Cell> srcChunk, int srcOrderIndex, int orderIndex)
+	{
+		return copyRecord((ChunkCell) srcChunk, srcChunk.get(srcOrderIndex, OFFSET_KEY));
+	}
+
+	/** copies a length-prefixed record of src's arena to the end of this chunk's arena. single thread only (compaction)
+	 * @return offset of the copied record */
+	private int copyRecord(ChunkCell src, int srcOff)
+	{
+		int size = LEN_SIZE + src.readLength(srcOff);
+
+		// keep room for a put of the largest item once the chunk is published
+		int off = arenaIndex.get();
+		int needed = off + size + maxRecordSize();
+		if (needed > arena.length)
+			arena = Arrays.copyOf(arena, Math.max(2 * arena.length, needed));
+
+		System.arraycopy(src.arena, srcOff, arena, off, size);
+		arenaIndex.set(off + size);
+
+		return off;
+	}
+
+	private int readLength(int off)
+	{
+		return arena[off] << 24 | (arena[off+1] & 0xFF) << 16 |
+				(arena[off+2] & 0xFF) << 8 | (arena[off+3] & 0xFF);
+	}
+
+	private void writeLength(int off, int len)
 	{
-		return new ChunkCell(minKey.clone(), this, delayForLinearizabilityTesting);
+		arena[off] = (byte) (len >>> 24);
+		arena[off+1] = (byte) (len >>> 16);
+		arena[off+2] = (byte) (len >>> 8);
+		arena[off+3] = (byte) len;
 	}
-	
-	
+
+	/** writes a length-prefixed record of cell at the given arena offset
+	 * @return offset following the record */
+	private int writeRecord(int off, Cell cell)
+	{
+		int len = cell.getLength();
+		writeLength(off, len);
+		System.arraycopy(cell.getBytes(), cell.getOffset(), arena, off + LEN_SIZE, len);
+		return off + LEN_SIZE + len;
+	}
+
+	/***************	Keys				***************/
+
 	@Override
 	public Cell readKey(int orderIndex)
 	{
-		throw new NotImplementedException();
+		int off = get(orderIndex, OFFSET_KEY);
+		return new Cell(arena, off + LEN_SIZE, readLength(off));
 	}
 	@Override
 	public Object readData(int oi, int di)
 	{
+		int off = valueOffsets[di];
+		return new Cell(arena, off + LEN_SIZE, readLength(off));
+	}
 
-		throw new NotImplementedException();
+	@Override
+	protected int compareKeys(int orderIndex1, int orderIndex2)
+	{
+		int off1 = get(orderIndex1, OFFSET_KEY);
+		int off2 = get(orderIndex2, OFFSET_KEY);
+		return Cell.compare(arena, off1 + LEN_SIZE, readLength(off1), arena, off2 + LEN_SIZE, readLength(off2));
 	}
 
 	@Override
-	public int copyRange(Object[] resultValues, Object[] resultKeys, boolean addKeys, int idx, int myVer, Cell min, Cell max, SortedMap<Cell, ThreadData.PutData<Cell, Cell>> items) {
-		throw new NotImplementedException();
+	protected int compareKey(int orderIndex, Cell key)
+	{
+		int off = get(orderIndex, OFFSET_KEY);
+		return Cell.compare(arena, off + LEN_SIZE, readLength(off), key.getBytes(), key.getOffset(), key.getLength());
+	}
+
+	@Override
+	public int copyRange(Object[] resultValues, Object[] resultKeys, boolean addKeys, int idx, long myVer, Cell min, Cell max, int[] pending, int pendingCount) {
+		// Like ChunkInt.copyRange: merge the linked list with the pending puts (both sorted by key),
+		// taking for each key the newest version <= myVer. Removed keys are copied as null, KiWi.scan drops them.
+		int curr = (idx == 0) ? findFirst(min, myVer) : getFirst(myVer);
+		int p = 0;
+
+		int itemsCount = 0;
+		int bestOI = NONE;
+		while ((curr != NONE) || (p < pendingCount))
+		{
+			int oi;
+			if ((curr == NONE) || ((p < pendingCount) && (compareKeys(pending[p], curr) <= 0)))
+			{
+				oi = pending[p++];
+			}
+			else
+			{
+				oi = curr;
+				curr = get(curr, OFFSET_NEXT);
+			}
+
+			if (compareKey(oi, max) > 0)
+				break;
+			if ((compareKey(oi, min) < 0) || (getVersion(oi) > myVer))
+				continue;
+
+			// another version of the last copied key - override it if newer
+			if ((bestOI != NONE) && (compareKeys(oi, bestOI) == 0))
+			{
+				if (chooseNewerItem(bestOI, oi) == oi)
+				{
+					resultValues[idx + itemsCount - 1] = getData(oi);
+					bestOI = oi;
+				}
+				continue;
+			}
+
+			resultValues[idx + itemsCount] = getData(oi);
+			if (addKeys)
+				resultKeys[idx + itemsCount] = readKey(oi);
+			bestOI = oi;
+			itemsCount++;
+		}
+
+		return itemsCount;
 	}
 
     @Override
     public void printLinkedList() {
-        throw new NotImplementedException();
+        int current = get(0, OFFSET_NEXT);
+        System.out.format("tid=%d\n", KiWi.threadId());
+        while (current != NONE) {
+            System.out.format("OI=%d, next=%d, ver=%d, key=%s, value=%s ->", current, get(current, OFFSET_NEXT),
+                    getVersion(current), readKey(current), getData(current));
+            current = get(current, OFFSET_NEXT);
+        }
+        System.out.println();
     }
 
     @Override
     public void printData(int orderIndex) {
-        throw new NotImplementedException();
+        System.out.format("tid=%d key=%s value=%s ver=%d oi=%d di=%d\n", KiWi.threadId(), readKey(orderIndex),
+                getData(orderIndex), getVersion(orderIndex), orderIndex, get(orderIndex, OFFSET_DATA));
     }
 
     @Override
 	public int allocate(Cell key, Cell data)
 	{
-		throw new NotImplementedException();
+		int size = LEN_SIZE + key.getLength() + ((data == null) ? 0 : LEN_SIZE + data.getLength());
+		if (size > maxRecordSize())
+			throw new IllegalArgumentException("item of " + size + " bytes is too large for a chunk");
+
+		// reserve room in arena - if there's none, the chunk is full
+		int off = arenaIndex.getAndAdd(size);
+		if (off + size > arena.length)
+			return -1;
+
+		int oi = baseAllocate(data == null ? 0 : 1);
+		if (oi >= 0)
+		{
+			// records are written before the item is published (by its KEY field, and then by publishPut)
+			int valOff = writeRecord(off, key);
+			if (data != null)
+			{
+				writeRecord(valOff, data);
+				valueOffsets[get(oi, OFFSET_DATA)] = valOff;
+			}
+			set(oi, OFFSET_KEY, off);
+		}
+
+		return oi;
 	}
 
 	@Override
@@ -0,0 +1,31 @@
+package kiwi;
+
+/**
+ * Index of the chunks of a KiWi by their min key, used to navigate quickly to the chunk of a key.
+ * It is maintained by rebalance (updateIndex) and may lag behind the chunk list - after a lookup
+ * KiWi continues along the list (iterateChunks) to reach the chunk actually holding the key.
+ * All methods are thread safe.
+ */
+public interface ChunkIndex<K extends Comparable<? super K>, V>
+{
+	/** @return the chunk with the greatest min key less than or equal to key, or null */
+	Chunk<K,V> floor(K key);
+
+	/** @return the chunk with the greatest min key strictly less than key, or null */
+	Chunk<K,V> lower(K key);
+
+	/** @return the chunk with the smallest min key, or null */
+	Chunk<K,V> first();
+
+	/** adds chunk under its min key, unless a chunk is already indexed under that key
+	 * @return true if chunk was added */
+	boolean putIfAbsent(Chunk<K,V> chunk);
+
+	/** replaces oldChunk by newChunk (under oldChunk's min key), if oldChunk is still indexed
+	 * @return true if replaced */
+	boolean replace(Chunk<K,V> oldChunk, Chunk<K,V> newChunk);
+
+	/** removes chunk, if it is still indexed under its min key
+	 * @return true if removed */
+	boolean remove(Chunk<K,V> chunk);
+}
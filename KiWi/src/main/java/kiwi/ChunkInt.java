@@ -38,15 +38,22 @@ public class ChunkInt extends Chunk<Integer,Integer>
 
 	public ChunkInt(Integer minKey, ChunkInt creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
 	{
-		super(minKey, DATA_SIZE, creator, delayForLinearizabilityTesting, sizeBounds);
+		this(minKey, creator, delayForLinearizabilityTesting, sizeBounds, MAX_ITEMS);
+	}
+
+	public ChunkInt(Integer minKey, ChunkInt creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds,
+					int capacity)
+	{
+		super(minKey, DATA_SIZE, creator, delayForLinearizabilityTesting, sizeBounds, capacity);
 	}
 
 	@Override
-	public Chunk<Integer,Integer> newChunk(Integer minKey)
+	public Chunk<Integer,Integer> newChunk(Integer minKey, int capacity)
 	{
-		if (chunks == null)
+		// pooled chunks are of the default capacity - a chunk of another capacity is never taken from the pool
+		if ((chunks == null) || (capacity != MAX_ITEMS))
 		{
-			return new ChunkInt(minKey, this, delayForLinearizabilityTesting, sizeBounds);
+			return new ChunkInt(minKey, this, delayForLinearizabilityTesting, sizeBounds, capacity);
 		}
 		else
 		{
@@ -106,6 +113,24 @@ public class ChunkInt extends Chunk<Integer,Integer>
         return -1;
     }
 
+	@Override
+	protected int compareKeys(int orderIndex1, int orderIndex2)
+	{
+		return Integer.compare(get(orderIndex1, OFFSET_KEY), get(orderIndex2, OFFSET_KEY));
+	}
+
+	@Override
+	protected boolean keepsIntKeys()
+	{
+		return true;
+	}
+
+	@Override
+	protected int intKey(Integer key)
+	{
+		return key;
+	}
+
     /**
      * Compare the tuple (is NONE, key)
      * 1 if the (is NONE, key) of orderIndex1 is larger.
@@ -135,13 +160,13 @@ public class ChunkInt extends Chunk<Integer,Integer>
 
 	@Override
 	public int copyRange(Object[] resultValues, Object[] resultKeys, boolean addKeys,
-						  int idx, int myVer, Integer min, Integer max, SortedMap<Integer, ThreadData.PutData<Integer,Integer>> items) {
+						  int idx, long myVer, Integer min, Integer max, int[] pending, int pendingCount) {
 	    // Fetch for each relevant key the corresponding value.
         // A key is relevant if it has the largest good version (<= myVer).
-        // All items in the TreeMap are relevant.
+        // All pending items are relevant.
 
-        // We consider items in the linked list orderedArray and in the TreeMap.
-        // Here, we iterate the TreeMap of extra items, and the linked list alternately.
+        // We consider items in the linked list orderedArray and the pending items (sorted by key, all in [min,max]).
+        // Here, we iterate the pending items, and the linked list alternately.
 		int i1LinkedListOI;
 		if(idx == 0)
 		{
@@ -149,30 +174,24 @@ public class ChunkInt extends Chunk<Integer,Integer>
 		} else{
 			i1LinkedListOI = getFirst(myVer);
 		}
-		// Simplify the iteration over the TreeMap to iteration over a sorted array.
-        List<Integer> treeMapKeys = new ArrayList<>(items.keySet());
-		Collections.sort(treeMapKeys);
-        int i2TreeMapIndex = 0;
-        while(i2TreeMapIndex < treeMapKeys.size() && treeMapKeys.get(i2TreeMapIndex) < min){
-            i2TreeMapIndex++;
-        }
+        int i2PendingIndex = 0;
         int itemsCount = 0;
         int bestOI = -1;
         int lastKey = Integer.MIN_VALUE;
         // Like merge sort, in each iteration, advance either i1 or i2.
-        while(i1LinkedListOI != NONE || i2TreeMapIndex < treeMapKeys.size()){
+        while(i1LinkedListOI != NONE || i2PendingIndex < pendingCount){
             int orderIndex1 = i1LinkedListOI;
             int orderIndex2 = NONE;
-            if(i2TreeMapIndex < treeMapKeys.size()){
-                orderIndex2 = items.get(treeMapKeys.get(i2TreeMapIndex)).orderIndex;
+            if(i2PendingIndex < pendingCount){
+                orderIndex2 = pending[i2PendingIndex];
             }
             int compareKeys = compareOIsKeys(orderIndex1, orderIndex2);
             int currentOrderIndex;
             if(compareKeys >= 0) { // i2 is smaller, so it should be considered
                                    // (or i1==i2 - doesn't matter which is considered).
                 currentOrderIndex = orderIndex2;
-                i2TreeMapIndex++;
-//                System.out.format("from TreeMap ");
+                i2PendingIndex++;
+//                System.out.format("from pending ");
             }else { // i1 is smaller, so it should be considered.
                 currentOrderIndex = orderIndex1;
                 i1LinkedListOI = get(i1LinkedListOI, OFFSET_NEXT);
@@ -217,7 +236,7 @@ public class ChunkInt extends Chunk<Integer,Integer>
         do{
             if(current > 0)
                 System.out.format("OI=%d, next=%d, ver=%d, key=%d, value=%d ->", current, get(current, OFFSET_NEXT),
-                        get(current, OFFSET_VERSION), get(current, OFFSET_KEY), getData(current));
+                        getVersion(current), get(current, OFFSET_KEY), getData(current));
             current = get(current, OFFSET_NEXT);
         }while(current != NONE);
         System.out.println();
@@ -233,6 +252,7 @@ public class ChunkInt extends Chunk<Integer,Integer>
 		{
 			// write integer key into (int) order array at correct offset
 			set(oi, OFFSET_KEY, (int) key);
+			addToFilter(oi);
 
 			// get data index
 			if(data != null) {
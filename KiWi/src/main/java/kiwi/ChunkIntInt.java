@@ -0,0 +1,213 @@
+package kiwi;
+
+/**
+ * Int-to-int chunk: keys are kept in the order array (as in ChunkInt) and values in a primitive int data array,
+ * so the int paths (allocateInt, readInt, copyRangeInt) never box keys or values.
+ * Removed items are marked by a negative data index in the order array - no null is ever stored.
+ */
+public class ChunkIntInt extends ChunkInt
+{
+	private final int[] intDataArray;	// null for chunks keeping their values off-heap
+
+	public ChunkIntInt(){
+		this(false, new LowerUpperBounds(true));
+	}
+	public ChunkIntInt(boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(Integer.MIN_VALUE, null, delayForLinearizabilityTesting, sizeBounds);
+	}
+
+	public ChunkIntInt(Integer minKey, ChunkIntInt creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(minKey, creator, delayForLinearizabilityTesting, sizeBounds, MAX_ITEMS);
+	}
+
+	public ChunkIntInt(Integer minKey, ChunkIntInt creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds,
+					   int capacity)
+	{
+		super(minKey, creator, delayForLinearizabilityTesting, sizeBounds, capacity);
+		this.intDataArray = newIntDataArray(capacity + 1);
+	}
+
+	@Override
+	public Chunk<Integer,Integer> newChunk(Integer minKey, int capacity)
+	{
+		return new ChunkIntInt(minKey, this, delayForLinearizabilityTesting, sizeBounds, capacity);
+	}
+
+	@Override
+	protected Object[] newDataArray(int capacity)
+	{
+		// values are kept in intDataArray
+		return null;
+	}
+
+	/** allocates the int data array. chunks keeping their values elsewhere override this to return null,
+	 * and override getIntData, setIntData and copyData */
+	protected int[] newIntDataArray(int capacity)
+	{
+		return new int[capacity];
+	}
+
+	protected int getIntData(int di)
+	{
+		return intDataArray[di];
+	}
+
+	protected void setIntData(int di, int value)
+	{
+		intDataArray[di] = value;
+	}
+
+	@Override
+	protected void copyData(Chunk<Integer,Integer> srcChunk, int srcIdx, int destIdx, int length)
+	{
+		int[] src = ((ChunkIntInt) srcChunk).intDataArray;
+
+		if (length == 1)
+			intDataArray[destIdx] = src[srcIdx];
+		else
+			System.arraycopy(src, srcIdx, intDataArray, destIdx, length);
+	}
+
+	@Override
+	public Object readData(int oi, int di)
+	{
+		return getIntData(di);
+	}
+
+	/** reads the value of the given item - the item must not be removed (see isRemoved) */
+	public final int readInt(int orderIndex)
+	{
+		return getIntData(get(orderIndex, OFFSET_DATA));
+	}
+
+	@Override
+	public int allocate(Integer key, Integer data)
+	{
+		return allocateInt(key, (data == null) ? 0 : data, data == null);
+	}
+
+	/** allocates an item for key in order and data array, and writes key & data into it
+	 * @param remove if true the item is a removal of key and data is ignored
+	 * @return order-array index of the item, or -1 if the chunk is full */
+	public int allocateInt(int key, int data, boolean remove)
+	{
+		int oi = baseAllocate(remove ? 0 : 1);
+
+		if (oi >= 0)
+		{
+			set(oi, OFFSET_KEY, key);
+			addToFilter(oi);
+
+			if (!remove)
+				setIntData(get(oi, OFFSET_DATA), data);
+		}
+
+		return oi;
+	}
+
+	/** allocates consecutive items for keys[from..from+count) and writes the keys & values into them
+	 * @param keys sorted and distinct - so the items are a run sorted by key (see publishRun)
+	 * @return order-array index of the first item, or -1 if the chunk has no room for all of them */
+	public int allocateRun(int[] keys, int[] vals, int from, int count)
+	{
+		int first = baseAllocateRun(count);
+
+		if (first >= 0)
+		{
+			for (int i = 0, oi = first; i < count; ++i, oi += ORDER_SIZE)
+			{
+				set(oi, OFFSET_KEY, keys[from + i]);
+				addToFilter(oi);
+				setIntData(get(oi, OFFSET_DATA), vals[from + i]);
+			}
+		}
+
+		return first;
+	}
+
+	@Override
+	public int allocateSerial(int key, Integer data)
+	{
+		int oi = baseAllocateSerial((data == null) ? 0 : 1);
+
+		if (oi >= 0)
+		{
+			set(oi, OFFSET_KEY, key);
+
+			if (data != null)
+				setIntData(get(oi, OFFSET_DATA), data);
+		}
+
+		return oi;
+	}
+
+	/***
+	 * Int counterpart of copyRange. Copies the newest visible (version <= myVer) value of each key in [min,max]
+	 * into keysOut/valsOut starting at idx, skipping removed keys.
+	 *
+	 * @param pending order indexes of pending puts in this chunk, sorted by key (see helpPutInScanInt)
+	 * @param pendingCount number of valid entries in pending
+	 * @return number of items copied
+	 */
+	public int copyRangeInt(int[] keysOut, int[] valsOut, int idx, long myVer, int min, int max,
+							int[] pending, int pendingCount)
+	{
+		int curr = (idx == 0) ? findFirstInt(min, myVer) : getFirst(myVer);
+		int p = 0;
+
+		int itemsCount = 0;
+		int bestOI = NONE;
+		int bestKey = 0;
+
+		// merge the linked list with the pending puts - both are sorted by key
+		while ((curr != NONE) || (p < pendingCount))
+		{
+			int oi;
+			if ((curr == NONE) || ((p < pendingCount) && (get(pending[p], OFFSET_KEY) <= get(curr, OFFSET_KEY))))
+			{
+				oi = pending[p++];
+			}
+			else
+			{
+				oi = curr;
+				curr = get(curr, OFFSET_NEXT);
+			}
+
+			int key = get(oi, OFFSET_KEY);
+			if (key > max)
+				break;
+			if ((key < min) || (getVersion(oi) > myVer))
+				continue;
+
+			// another version of the current key - keep the newer one
+			if ((bestOI != NONE) && (key == bestKey))
+			{
+				if (compareOIsVersion(oi, bestOI) > 0)
+					bestOI = oi;
+				continue;
+			}
+
+			// moved to a new key - emit the previous one unless it is removed
+			if ((bestOI != NONE) && !isRemoved(bestOI))
+			{
+				keysOut[idx + itemsCount] = bestKey;
+				valsOut[idx + itemsCount] = readInt(bestOI);
+				itemsCount++;
+			}
+
+			bestOI = oi;
+			bestKey = key;
+		}
+
+		if ((bestOI != NONE) && !isRemoved(bestOI))
+		{
+			keysOut[idx + itemsCount] = bestKey;
+			valsOut[idx + itemsCount] = readInt(bestOI);
+			itemsCount++;
+		}
+
+		return itemsCount;
+	}
+}
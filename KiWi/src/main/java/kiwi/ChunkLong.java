@@ -0,0 +1,522 @@
+package kiwi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-to-long chunk. Keys don't fit the int KEY field of the order array, so they are kept in a parallel
+ * long array indexed by item (orderIndex / ORDER_SIZE), and values in a primitive long data array.
+ * The long paths (allocateLong, findLong, copyRangeLong, ...) mirror the int paths of Chunk and ChunkIntInt
+ * and never box keys or values. Removed items are marked by a negative data index, as in ChunkIntInt.
+ */
+public class ChunkLong extends Chunk<Long,Long>
+{
+	private static final int DATA_SIZE = 1;	// average # of BYTES of item in data array (guesstimate)
+
+	private final long[] keys;		// key of each item, indexed by orderIndex / ORDER_SIZE
+	private final long[] values;	// data array
+	private long[] searchBlocks;	// first key of each block of SEARCH_BLOCK sorted keys - null unless built
+
+	public ChunkLong(){
+		this(false, new LowerUpperBounds(true));
+	}
+	public ChunkLong(boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(Long.MIN_VALUE, null, delayForLinearizabilityTesting, sizeBounds);
+	}
+
+	public ChunkLong(Long minKey, ChunkLong creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(minKey, creator, delayForLinearizabilityTesting, sizeBounds, MAX_ITEMS);
+	}
+
+	public ChunkLong(Long minKey, ChunkLong creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds,
+					 int capacity)
+	{
+		super(minKey, DATA_SIZE, creator, delayForLinearizabilityTesting, sizeBounds, capacity);
+		this.keys = new long[capacity];
+		this.values = new long[capacity + 1];
+	}
+
+	@Override
+	public Chunk<Long,Long> newChunk(Long minKey, int capacity)
+	{
+		return new ChunkLong(minKey, this, delayForLinearizabilityTesting, sizeBounds, capacity);
+	}
+
+	/***************	Keys & Data			***************/
+
+	/** @return the key of the given item */
+	public final long getLongKey(int orderIndex)
+	{
+		return keys[orderIndex / ORDER_SIZE];
+	}
+
+	/** reads the value of the given item - the item must not be removed (see isRemoved) */
+	public final long readLong(int orderIndex)
+	{
+		return values[get(orderIndex, OFFSET_DATA)];
+	}
+
+	@Override
+	public Long readKey(int orderIndex)
+	{
+		return getLongKey(orderIndex);
+	}
+
+	@Override
+	protected boolean filtersKeys()
+	{
+		return true;
+	}
+
+	@Override
+	protected long keyHash(Long key)
+	{
+		return hashLong(key);
+	}
+
+	@Override
+	protected long itemHash(int orderIndex)
+	{
+		return hashLong(getLongKey(orderIndex));
+	}
+
+	@Override
+	public Object readData(int oi, int di)
+	{
+		return values[di];
+	}
+
+	@Override
+	protected Object[] newDataArray(int capacity)
+	{
+		// values are kept in a primitive array
+		return null;
+	}
+
+	@Override
+	protected void copyData(Chunk<Long,Long> srcChunk, int srcIdx, int destIdx, int length)
+	{
+		long[] src = ((ChunkLong) srcChunk).values;
+
+		if (length == 1)
+			values[destIdx] = src[srcIdx];
+		else
+			System.arraycopy(src, srcIdx, values, destIdx, length);
+	}
+
+	@Override
+	protected int copyKey(Chunk<Long,Long> srcChunk, int srcOrderIndex, int orderIndex)
+	{
+		keys[orderIndex / ORDER_SIZE] = ((ChunkLong) srcChunk).getLongKey(srcOrderIndex);
+
+		// KEY field of the order array is not used
+		return NONE;
+	}
+
+	@Override
+	protected int compareKeys(int orderIndex1, int orderIndex2)
+	{
+		return Long.compare(getLongKey(orderIndex1), getLongKey(orderIndex2));
+	}
+
+	@Override
+	protected int compareKey(int orderIndex, Long key)
+	{
+		return Long.compare(getLongKey(orderIndex), key);
+	}
+
+	/***************	Allocation			***************/
+
+	@Override
+	public int allocate(Long key, Long data)
+	{
+		return allocateLong(key, (data == null) ? 0 : data, data == null);
+	}
+
+	/** allocates an item for key in order and data array, and writes key & data into it
+	 * @param remove if true the item is a removal of key and data is ignored
+	 * @return order-array index of the item, or -1 if the chunk is full */
+	public int allocateLong(long key, long data, boolean remove)
+	{
+		int oi = baseAllocate(remove ? 0 : DATA_SIZE);
+
+		if (oi >= 0)
+		{
+			keys[oi / ORDER_SIZE] = key;
+			addToFilter(oi);
+
+			if (!remove)
+				values[get(oi, OFFSET_DATA)] = data;
+		}
+
+		return oi;
+	}
+
+	@Override
+	public int allocateSerial(int key, Long data)
+	{
+		int oi = baseAllocateSerial((data == null) ? 0 : DATA_SIZE);
+
+		if (oi >= 0)
+		{
+			keys[oi / ORDER_SIZE] = key;
+
+			if (data != null)
+				values[get(oi, OFFSET_DATA)] = data;
+		}
+
+		return oi;
+	}
+
+	/***************	Long Paths			***************/
+
+	/** long-key counterpart of buildSearchIndex - the keys of the sorted prefix are already contiguous
+	 * (the first sortedCount keys), so only the blocks are built */
+	@Override
+	void buildSearchIndex()
+	{
+		int count = sortedCount;
+		if (count == 0)
+			return;
+
+		long[] blocks = new long[(count + SEARCH_BLOCK - 1) / SEARCH_BLOCK];
+		for (int b = 0; b < blocks.length; ++b)
+			blocks[b] = keys[b * SEARCH_BLOCK];
+
+		searchBlocks = blocks;
+	}
+
+	/** long-key counterpart of binaryFind */
+	private int binaryFindLong(long key)
+	{
+		if ((sortedCount == 0) || (getLongKey(FIRST_ITEM) >= key))
+			return HEAD_NODE;
+
+		long[] blocks = searchBlocks;
+		if (blocks != null)
+		{
+			// last block whose first key is smaller than key, then last key of it smaller than key
+			int start = 0;
+			int end = blocks.length;
+
+			while (end - start > 1)
+			{
+				int curr = (start + end) >>> 1;
+
+				if (blocks[curr] >= key)
+					end = curr;
+				else
+					start = curr;
+			}
+
+			int i = start * SEARCH_BLOCK;
+			i += BlockSearch.instance.countLess(keys, i, Math.min(i + SEARCH_BLOCK, sortedCount), key) - 1;
+
+			return i * ORDER_SIZE + FIRST_ITEM;
+		}
+
+		int start = 0;
+		int end = sortedCount;
+
+		while (end - start > 1)
+		{
+			int curr = start + (end - start) / 2;
+
+			if (getLongKey(curr * ORDER_SIZE + FIRST_ITEM) >= key)
+				end = curr;
+			else
+				start = curr;
+		}
+
+		return start * ORDER_SIZE + FIRST_ITEM;
+	}
+
+	/** long-key counterpart of addToList(int, K) */
+	public final void addToListLong(final int orderIndex, long key)
+	{
+		addToList(orderIndex, binaryFindLong(key));
+	}
+
+	/** long-key counterpart of findFirst */
+	public int findFirstLong(long minKey, long version)
+	{
+		int curr = get(binaryFindLong(minKey), OFFSET_NEXT);
+
+		while (curr != NONE)
+		{
+			if ((getLongKey(curr) >= minKey) && (getVersion(curr) <= version))
+				return curr;
+
+			curr = get(curr, OFFSET_NEXT);
+		}
+
+		return NONE;
+	}
+
+	/** long-key counterpart of findInt
+	 * @param pendingOi order index of the newest pending put of key (see helpPutInGetLong), or NONE
+	 * @return order index of the newest item matching key (possibly a removal), or NONE if no such key exists */
+	public int findLong(long key, int pendingOi)
+	{
+		int curr = get(binaryFindLong(key), OFFSET_NEXT);
+		int hops = 0;
+
+		while (curr != NONE)
+		{
+			long currKey = getLongKey(curr);
+
+			if (currKey > key)
+				break;
+			else if (currKey == key)
+			{
+				countLookupHops(hops);
+				return chooseNewerItem(curr, pendingOi);
+			}
+			else
+			{
+				curr = get(curr, OFFSET_NEXT);
+				hops++;
+			}
+		}
+
+		countLookupHops(hops);
+		return pendingOi;
+	}
+
+
+	/** long-key counterpart of helpPutInGetInt
+	 * @return order index of the newest pending put of myKey, or NONE */
+	public int helpPutInGetLong(AtomicLong version, long myKey)
+	{
+		int newestOi = NONE;
+		long newestVer = NONE;
+		if (!hasPendingPuts())
+			return NONE;
+
+		// go over thread data of all registered threads
+		int slots = ThreadRegistry.maxSlots();
+		for (int i = 0; i < slots; ++i)
+		{
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
+				continue;
+
+			// if put operation's key is not same as my key - skip it
+			if (getLongKey(currOi) != myKey)
+				continue;
+
+			// read the current version of the item, if empty try to set to the current version
+			long currVer = getVersion(currOi);
+			if (currVer == NONE)
+				currVer = setVersion(currOi, helpVersion(version));
+
+			// if item is frozen - skip it
+			if (currVer == FREEZE_VERSION)
+				continue;
+
+			// newer version, or same version but later in chunk - replace
+			if ((currVer > newestVer) || ((currVer == newestVer) && (currOi > newestOi)))
+			{
+				newestVer = currVer;
+				newestOi = currOi;
+			}
+		}
+
+		if (isRebalanced())
+			return NONE;
+
+		return newestOi;
+	}
+
+	/** long-key counterpart of helpPutInScanInt.
+	 * fills 'pending' with the order index of the newest pending put of each key in [min,max], sorted by key
+	 * @return number of order indexes written into 'pending' (which should hold ThreadRegistry.maxSlots() items) */
+	public int helpPutInScanLong(long myVersion, AtomicLong version, long min, long max, int[] pending)
+	{
+		int count = 0;
+		if (!hasPendingPuts())
+			return count;
+
+		// go over thread data of all registered threads (bounded by 'pending', see helpPutInScanInt)
+		int slots = Math.min(ThreadRegistry.maxSlots(), pending.length);
+		for (int i = 0; i < slots; ++i)
+		{
+			int currOi = publishedPut(i);
+			if (currOi == NONE)
+				continue;
+
+			// if put operation's key is not in key range - skip it
+			long currKey = getLongKey(currOi);
+			if ((currKey < min) || (currKey > max))
+				continue;
+
+			// read the current version of the item, if empty try to set to the current version
+			long currVer = getVersion(currOi);
+			if (currVer == NONE)
+				currVer = setVersion(currOi, helpVersion(version));
+
+			// if item is frozen or beyond my version - skip it
+			if ((currVer == FREEZE_VERSION) || (currVer > myVersion))
+				continue;
+
+			// find position of key among items found so far (kept sorted by key)
+			int pos = count;
+			while ((pos > 0) && (getLongKey(pending[pos - 1]) >= currKey))
+				--pos;
+
+			// same key found before - keep the newer of the two (version, then order index)
+			if ((pos < count) && (getLongKey(pending[pos]) == currKey))
+			{
+				long itemVer = getVersion(pending[pos]);
+				if ((itemVer > currVer) || ((itemVer == currVer) && (pending[pos] > currOi)))
+					continue;
+
+				pending[pos] = currOi;
+				continue;
+			}
+
+			System.arraycopy(pending, pos, pending, pos + 1, count - pos);
+			pending[pos] = currOi;
+			++count;
+		}
+
+		return count;
+	}
+
+	/***
+	 * Long counterpart of ChunkIntInt.copyRangeInt. Copies the newest visible (version <= myVer) value of each key
+	 * in [min,max] into keysOut/valsOut starting at idx, skipping removed keys.
+	 *
+	 * @param pending order indexes of pending puts in this chunk, sorted by key (see helpPutInScanLong)
+	 * @param pendingCount number of valid entries in pending
+	 * @return number of items copied
+	 */
+	public int copyRangeLong(long[] keysOut, long[] valsOut, int idx, long myVer, long min, long max,
+							 int[] pending, int pendingCount)
+	{
+		int curr = (idx == 0) ? findFirstLong(min, myVer) : getFirst(myVer);
+		int p = 0;
+
+		int itemsCount = 0;
+		int bestOI = NONE;
+		long bestKey = 0;
+
+		// merge the linked list with the pending puts - both are sorted by key
+		while ((curr != NONE) || (p < pendingCount))
+		{
+			int oi;
+			if ((curr == NONE) || ((p < pendingCount) && (getLongKey(pending[p]) <= getLongKey(curr))))
+			{
+				oi = pending[p++];
+			}
+			else
+			{
+				oi = curr;
+				curr = get(curr, OFFSET_NEXT);
+			}
+
+			long key = getLongKey(oi);
+			if (key > max)
+				break;
+			if ((key < min) || (getVersion(oi) > myVer))
+				continue;
+
+			// another version of the current key - keep the newer one
+			if ((bestOI != NONE) && (key == bestKey))
+			{
+				bestOI = chooseNewerItem(bestOI, oi);
+				continue;
+			}
+
+			// moved to a new key - emit the previous one unless it is removed
+			if ((bestOI != NONE) && !isRemoved(bestOI))
+			{
+				keysOut[idx + itemsCount] = bestKey;
+				valsOut[idx + itemsCount] = readLong(bestOI);
+				itemsCount++;
+			}
+
+			bestOI = oi;
+			bestKey = key;
+		}
+
+		if ((bestOI != NONE) && !isRemoved(bestOI))
+		{
+			keysOut[idx + itemsCount] = bestKey;
+			valsOut[idx + itemsCount] = readLong(bestOI);
+			itemsCount++;
+		}
+
+		return itemsCount;
+	}
+
+	@Override
+	public int copyRange(Object[] resultValues, Object[] resultKeys, boolean addKeys,
+						 int idx, long myVer, Long min, Long max, int[] pending, int pendingCount)
+	{
+		// merge the linked list with the pending puts (both sorted by key), taking for each key the newest
+		// version <= myVer. removed keys are copied as null - KiWi.scan removes them
+		int curr = (idx == 0) ? findFirstLong(min, myVer) : getFirst(myVer);
+		int p = 0;
+
+		int itemsCount = 0;
+		int bestOI = NONE;
+		while ((curr != NONE) || (p < pendingCount))
+		{
+			int oi;
+			if ((curr == NONE) || ((p < pendingCount) && (getLongKey(pending[p]) <= getLongKey(curr))))
+			{
+				oi = pending[p++];
+			}
+			else
+			{
+				oi = curr;
+				curr = get(curr, OFFSET_NEXT);
+			}
+
+			long key = getLongKey(oi);
+			if (key > max)
+				break;
+			if ((key < min) || (getVersion(oi) > myVer))
+				continue;
+
+			// another version of the last copied key - override it if newer
+			if ((bestOI != NONE) && (key == getLongKey(bestOI)))
+			{
+				if (chooseNewerItem(bestOI, oi) == oi)
+				{
+					resultValues[idx + itemsCount - 1] = getData(oi);
+					bestOI = oi;
+				}
+				continue;
+			}
+
+			resultValues[idx + itemsCount] = getData(oi);
+			if (addKeys)
+				resultKeys[idx + itemsCount] = key;
+			bestOI = oi;
+			itemsCount++;
+		}
+
+		return itemsCount;
+	}
+
+    @Override
+    public void printLinkedList() {
+        int current = get(HEAD_NODE, OFFSET_NEXT);
+        System.out.format("tid=%d\n", KiWi.threadId());
+        while (current != NONE) {
+            System.out.format("OI=%d, next=%d, ver=%d, key=%d, value=%s ->", current, get(current, OFFSET_NEXT),
+                    getVersion(current), getLongKey(current), getData(current));
+            current = get(current, OFFSET_NEXT);
+        }
+        System.out.println();
+    }
+
+    @Override
+    public void printData(int orderIndex) {
+        System.out.format("tid=%d key=%d value=%s ver=%d oi=%d di=%d\n", KiWi.threadId(), getLongKey(orderIndex),
+                getData(orderIndex), getVersion(orderIndex), orderIndex, get(orderIndex, OFFSET_DATA));
+    }
+}
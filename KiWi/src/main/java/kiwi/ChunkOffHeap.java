@@ -0,0 +1,154 @@
+package kiwi;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Int-to-int chunk whose order array and data array live in native memory (allocated through Chunk.unsafe),
+ * so the heap holds only a small fixed-size header per chunk regardless of the number of items.
+ * The memory is freed by release() - KiWi calls it (through a ChunkReclaimer) once a rebalanced chunk
+ * can no longer be reached by any operation.
+ */
+public class ChunkOffHeap extends ChunkIntInt
+{
+	private static final long INT_SIZE = 4;
+	private static final long LONG_SIZE = 8;
+
+	private final long orderAddress;	// base address of the order array
+	private final long versionAddress;	// base address of the versions
+	private final long dataAddress;		// base address of the data array
+	private final AtomicBoolean released = new AtomicBoolean(false);
+
+	public ChunkOffHeap(){
+		this(false, new LowerUpperBounds(true));
+	}
+	public ChunkOffHeap(boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(Integer.MIN_VALUE, null, delayForLinearizabilityTesting, sizeBounds);
+	}
+
+	public ChunkOffHeap(Integer minKey, ChunkOffHeap creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds)
+	{
+		this(minKey, creator, delayForLinearizabilityTesting, sizeBounds, MAX_ITEMS);
+	}
+
+	public ChunkOffHeap(Integer minKey, ChunkOffHeap creator, boolean delayForLinearizabilityTesting, LowerUpperBounds sizeBounds,
+						int capacity)
+	{
+		super(minKey, creator, delayForLinearizabilityTesting, sizeBounds, capacity);
+
+		// order array must be initialized to 0, i.e., NONE (as a java array would be)
+		long orderBytes = orderLength * INT_SIZE;
+		this.orderAddress = unsafe.allocateMemory(orderBytes);
+		unsafe.setMemory(orderAddress, orderBytes, (byte) 0);
+
+		// versions must be initialized to NONE as well
+		long versionBytes = capacity * LONG_SIZE;
+		this.versionAddress = unsafe.allocateMemory(versionBytes);
+		unsafe.setMemory(versionAddress, versionBytes, (byte) 0);
+
+		this.dataAddress = unsafe.allocateMemory((capacity + 1) * INT_SIZE);
+	}
+
+	@Override
+	public Chunk<Integer,Integer> newChunk(Integer minKey, int capacity)
+	{
+		return new ChunkOffHeap(minKey, this, delayForLinearizabilityTesting, sizeBounds, capacity);
+	}
+
+	@Override
+	public boolean isOffHeap()
+	{
+		return true;
+	}
+
+	@Override
+	public void release()
+	{
+		if (!released.compareAndSet(false, true))
+			return;
+
+		unsafe.freeMemory(orderAddress);
+		unsafe.freeMemory(versionAddress);
+		unsafe.freeMemory(dataAddress);
+	}
+
+	/***************	Order Array			***************/
+
+	@Override
+	protected int[] newOrderArray(int length)
+	{
+		// allocated off-heap by the constructor
+		return null;
+	}
+
+	@Override
+	protected int get(int item, int offset)
+	{
+		return unsafe.getInt(orderAddress + (item + offset) * INT_SIZE);
+	}
+
+	@Override
+	protected void set(int item, int offset, int value)
+	{
+		unsafe.putInt(orderAddress + (item + offset) * INT_SIZE, value);
+	}
+
+	@Override
+	protected boolean cas(int item, int offset, int expected, int value)
+	{
+		return unsafe.compareAndSwapInt(null, orderAddress + (item + offset) * INT_SIZE, expected, value);
+	}
+
+	@Override
+	protected long[] newVersionArray(int capacity)
+	{
+		// allocated off-heap by the constructor
+		return null;
+	}
+
+	@Override
+	protected long getVersionField(int item)
+	{
+		return unsafe.getLongVolatile(null, versionAddress + (item / ORDER_SIZE) * LONG_SIZE);
+	}
+
+	@Override
+	protected void setVersionField(int item, long value)
+	{
+		unsafe.putOrderedLong(null, versionAddress + (item / ORDER_SIZE) * LONG_SIZE, value);
+	}
+
+	@Override
+	protected boolean casVersionField(int item, long expected, long value)
+	{
+		return unsafe.compareAndSwapLong(null, versionAddress + (item / ORDER_SIZE) * LONG_SIZE, expected, value);
+	}
+
+	/***************	Data Array			***************/
+
+	@Override
+	protected int[] newIntDataArray(int capacity)
+	{
+		// allocated off-heap by the constructor
+		return null;
+	}
+
+	@Override
+	protected int getIntData(int di)
+	{
+		return unsafe.getInt(dataAddress + di * INT_SIZE);
+	}
+
+	@Override
+	protected void setIntData(int di, int value)
+	{
+		unsafe.putInt(dataAddress + di * INT_SIZE, value);
+	}
+
+	@Override
+	protected void copyData(Chunk<Integer,Integer> srcChunk, int srcIdx, int destIdx, int length)
+	{
+		long src = ((ChunkOffHeap) srcChunk).dataAddress;
+		unsafe.copyMemory(src + srcIdx * INT_SIZE, dataAddress + destIdx * INT_SIZE, length * INT_SIZE);
+	}
+}
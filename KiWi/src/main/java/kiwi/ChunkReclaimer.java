@@ -0,0 +1,122 @@
+package kiwi;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Epoch based reclamation of rebalanced chunks that keep memory off-heap.
+ * Every map operation runs between enter() and exit(). A chunk retired (once it is unlinked from the chunk list
+ * and removed from the index) is released only after all operations that were running when it was retired
+ * have exited - operations starting later cannot reach it.
+ */
+public class ChunkReclaimer
+{
+	private static final long QUIESCENT = 0;
+	private static final int EPOCH_PAD_SIZE = 8;	// # of longs between entries, a cache line
+
+	private static final class Retired
+	{
+		final Chunk<?,?>	chunk;
+		final long			epoch;
+
+		Retired(Chunk<?,?> chunk, long epoch)
+		{
+			this.chunk = chunk;
+			this.epoch = epoch;
+		}
+	}
+
+	/*************** Members ***************/
+	private final AtomicLong								epoch = new AtomicLong(QUIESCENT + 1);
+	// epoch in which the current operation of each thread started, or QUIESCENT - indexed by ThreadRegistry
+	// slots, so the entries of exited threads are reused rather than piling up
+	private final LongSlotArray								epochs = new LongSlotArray(EPOCH_PAD_SIZE);
+	private final ConcurrentLinkedQueue<Retired>			retired = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean								reclaiming = new AtomicBoolean(false);
+
+	// nesting depth of the current thread's operations
+	private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/*************** Methods ***************/
+
+	/** marks the start of an operation by the current thread */
+	public void enter()
+	{
+		int[] d = depth.get();
+		if (d[0]++ == 0)
+		{
+			epochs.set(ThreadRegistry.slot(), epoch.get());
+			// the epoch must be visible before the operation reads any chunk
+			Chunk.unsafe.fullFence();
+		}
+	}
+
+	/** marks the end of an operation by the current thread */
+	public void exit()
+	{
+		int[] d = depth.get();
+		if (--d[0] == 0)
+			epochs.set(ThreadRegistry.slot(), QUIESCENT);
+	}
+
+	/** hands the given (already unreachable) chunks for release once no running operation can access them */
+	public void retire(List<? extends Chunk<?,?>> chunks)
+	{
+		long retireEpoch = epoch.getAndIncrement();
+
+		for (Chunk<?,?> chunk : chunks)
+			retired.add(new Retired(chunk, retireEpoch));
+
+		reclaim();
+	}
+
+	/** releases retired chunks that are older than all running operations */
+	public void reclaim()
+	{
+		// a single reclaiming thread at a time - others may just skip it
+		if (!reclaiming.compareAndSet(false, true))
+			return;
+
+		try
+		{
+			long minActive = Long.MAX_VALUE;
+			int slots = ThreadRegistry.maxSlots();
+			for (int i = 0; i < slots; ++i)
+			{
+				long e = epochs.get(i);
+				if ((e != QUIESCENT) && (e < minActive))
+					minActive = e;
+			}
+
+			// operations that started in epoch <= retire epoch may still hold the chunk
+			while (true)
+			{
+				Retired r = retired.peek();
+				if ((r == null) || (r.epoch >= minActive))
+					break;
+
+				retired.poll();
+				r.chunk.release();
+			}
+		}
+		finally
+		{
+			reclaiming.set(false);
+		}
+	}
+
+	/** releases all retired chunks at once. may be called only when no operation is running */
+	public void releaseAll()
+	{
+		Retired r;
+		while ((r = retired.poll()) != null)
+			r.chunk.release();
+	}
+}
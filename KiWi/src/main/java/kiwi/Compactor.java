@@ -4,6 +4,6 @@ import java.util.List;
 /**
  * Created by dbasin on 12/1/15.
  */
-public interface Compactor<K extends Comparable<K>,V> {
+public interface Compactor<K extends Comparable<? super K>,V> {
     List<Chunk<K, V>> compact(List<Chunk<K, V>> frozenChunks, ScanIndex<K> scanIndex);
 }
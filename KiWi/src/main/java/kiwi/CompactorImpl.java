@@ -1,5 +1,6 @@
 package kiwi;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -9,26 +10,88 @@ import java.util.ListIterator;
  * Created by dbasin on 12/1/15.
  */
 
-public class CompactorImpl<K extends Comparable<K>,V> implements Compactor<K,V>
+public class CompactorImpl<K extends Comparable<? super K>,V> implements Compactor<K,V>
 {
-    private final int LOW_THRESHOLD = Chunk.MAX_ITEMS/2;
+    private final int LOW_THRESHOLD;  // # of items copied into a compacted chunk before starting the next one
     private final int HIGH_THRESHOLD = Chunk.MAX_ITEMS - KiWi.MAX_THREADS; // max number of pending scan versions
-    private final int MAX_RANGE_TO_APPEND = (int)(0.2*Chunk.MAX_ITEMS);
+    private final int MAX_RANGE_TO_APPEND;
+    private final int CAPACITY;  // capacity of the compacted chunks
     private Chunk<K,V> lastCheckedForAppend = null;
 
+    public CompactorImpl()
+    {
+        this(Chunk.MAX_ITEMS/2, Chunk.MAX_ITEMS);
+    }
+
+    public CompactorImpl(int lowThreshold, int capacity)
+    {
+        LOW_THRESHOLD = lowThreshold;
+        CAPACITY = capacity;
+        // an appended suffix must fit in the rest of the chunk
+        MAX_RANGE_TO_APPEND = Math.min((int)(0.2*Chunk.MAX_ITEMS), capacity - lowThreshold);
+    }
 
 
-    public List<Chunk<K,V>> compact(List<Chunk<K,V>> frozenChunks, ScanIndex<K> scanIndex)
+    /***
+     * Position in the frozen chunks where compaction starts a compacted chunk (other than the first)
+     */
+    public static final class Cut
     {
-        ListIterator<Chunk<K,V>> iterFrozen = frozenChunks.listIterator();
+        final int chunk;    // index of the frozen chunk in the compacted list
+        final int oi;       // first item of the compacted chunk in that frozen chunk
 
-        Chunk<K,V> firstFrozen = iterFrozen.next();
-        Chunk<K,V> currFrozen = firstFrozen;
-        Chunk<K,V> currCompacted = firstFrozen.newChunk(firstFrozen.minKey);
+        Cut(int chunk, int oi)
+        {
+            this.chunk = chunk;
+            this.oi = oi;
+        }
+    }
 
-        int oi = firstFrozen.getFirstItemOrderId();
+    public List<Chunk<K,V>> compact(List<Chunk<K,V>> frozenChunks, ScanIndex<K> scanIndex)
+    {
+        return compact(frozenChunks, null, null, scanIndex);
+    }
 
+    /***
+     * Compacts the items of frozenChunks between two of the cuts found by plan - making exactly the compacted chunks
+     * compact(frozenChunks, scanIndex) makes of them, given the same scans.
+     * @param from cut of the first compacted chunk, or null to start at the first item
+     * @param to cut following the last compacted chunk, or null to go on to the last item
+     */
+    public List<Chunk<K,V>> compact(List<Chunk<K,V>> frozenChunks, Cut from, Cut to, ScanIndex<K> scanIndex)
+    {
         List<Chunk<K,V>> compacted = new LinkedList<>();
+        run(frozenChunks, from, to, scanIndex, compacted, null);
+
+        return compacted;
+    }
+
+    /***
+     * Finds where compaction of frozenChunks starts each compacted chunk but the first, so parts of the range
+     * can be compacted apart (see compact(frozenChunks, from, to, scanIndex)).
+     * Runs the compaction itself, into a single scratch chunk emptied at each cut - so it reads the items
+     * but writes to no more than a chunk.
+     */
+    public List<Cut> plan(List<Chunk<K,V>> frozenChunks, ScanIndex<K> scanIndex)
+    {
+        List<Cut> cuts = new ArrayList<>();
+        run(frozenChunks, null, null, scanIndex, null, cuts);
+
+        return cuts;
+    }
+
+    /** compacts into 'compacted' - or only into a scratch chunk, adding the cuts to 'cuts' if not null */
+    private void run(List<Chunk<K,V>> frozenChunks, Cut from, Cut to, ScanIndex<K> scanIndex,
+                     List<Chunk<K,V>> compacted, List<Cut> cuts)
+    {
+        ListIterator<Chunk<K,V>> iterFrozen = frozenChunks.listIterator((from == null) ? 0 : from.chunk);
+
+        Chunk<K,V> firstFrozen = frozenChunks.get(0);
+        Chunk<K,V> currFrozen = iterFrozen.next();
+
+        int oi = (from == null) ? currFrozen.getFirstItemOrderId() : from.oi;
+        K minKey = (from == null) ? firstFrozen.minKey : currFrozen.readKey(oi);
+        Chunk<K,V> currCompacted = firstFrozen.newChunk(minKey, CAPACITY);
 
         while(true)
         {
@@ -45,17 +108,26 @@ public class CompactorImpl<K extends Comparable<K>,V> implements Compactor<K,V>
             }
             else // filled compacted chunk up to LOW_THRESHOLD
             {
+                // the following part starts here
+                if((to != null) && (iterFrozen.previousIndex() == to.chunk) && (oi == to.oi))
+                    break;
+
                 List<Chunk<K,V>> frozenSuffix = frozenChunks.subList(iterFrozen.previousIndex(), frozenChunks.size());
 
                 // try to look ahead and add frozen suffix
                 if(canAppendSuffix(oi, frozenSuffix, MAX_RANGE_TO_APPEND))
                 {
-                    completeCopy(currCompacted, oi, frozenSuffix, scanIndex);
+                    if(cuts == null)
+                        completeCopy(currCompacted, oi, frozenSuffix, scanIndex);
                     break;
 
+                } else if(cuts != null)
+                {
+                    cuts.add(new Cut(iterFrozen.previousIndex(), oi));
+                    currCompacted.clearSerial();
                 } else
                 {
-                    Chunk<K,V> c = firstFrozen.newChunk(currFrozen.readKey(oi));
+                    Chunk<K,V> c = firstFrozen.newChunk(currFrozen.readKey(oi), CAPACITY);
                     currCompacted.next.set(c,false);
 
                     compacted.add(currCompacted);
@@ -65,9 +137,10 @@ public class CompactorImpl<K extends Comparable<K>,V> implements Compactor<K,V>
 
         }
 
-        compacted.add(currCompacted);
-
-        return compacted;
+        if(cuts == null)
+            compacted.add(currCompacted);
+        else
+            currCompacted.release();    // the scratch chunk is never published
     }
 
     private boolean canAppendSuffix(int oi, List<Chunk<K,V>> frozenSuffix, int maxCount)
@@ -88,14 +161,14 @@ public class CompactorImpl<K extends Comparable<K>,V> implements Compactor<K,V>
     {
         Iterator<Chunk<K,V>> iter = srcChunks.iterator();
         Chunk<K,V> src = iter.next();
-        dest.copyPart(src,oi, Chunk.MAX_ITEMS, scanIndex);
+        dest.copyPart(src,oi, dest.getCapacity(), scanIndex);
 
         while(iter.hasNext())
         {
 
             src = iter.next();
             oi = src.getFirstItemOrderId();
-            dest.copyPart(src,oi, Chunk.MAX_ITEMS, scanIndex);
+            dest.copyPart(src,oi, dest.getCapacity(), scanIndex);
         }
     }
 
@@ -13,4 +13,12 @@ public class DebugStats {
     public long duplicatesCount = 0;
     public long nulItemsCount = 0;
     public long removedItems = 0;
+    public long bloomFilterBytes = 0;
+    public long bloomFilterWords = 0;
+    public double bloomFalsePositives = 0;    // sum over filter words of the chance a lookup of an absent key passes
+
+    /** @return expected rate of lookups of absent keys the Bloom filters don't answer (0 if there are none) */
+    public double bloomFalsePositiveRate() {
+        return (bloomFilterWords == 0) ? 0 : bloomFalsePositives / bloomFilterWords;
+    }
 }
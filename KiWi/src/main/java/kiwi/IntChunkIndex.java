@@ -0,0 +1,295 @@
+package kiwi;
+
+import java.util.List;
+
+/**
+ * Chunk index for int keys: a copy-on-write sorted int array of chunk min keys with a parallel chunk array.
+ * A lookup is a binary search over a flat int array (no key boxing, no pointer chasing, no allocation),
+ * while every update copies both arrays under a lock. Updates happen only on rebalance, once per
+ * thousands of puts, so the index is read-mostly; floorInt should be preferred by int-key paths.
+ *
+ * Optionally (learnedEpsilon > 0) a PiecewiseLinearModel of the key positions is kept with the arrays,
+ * and a lookup only searches the few positions around the model's prediction. Updates don't retrain the
+ * model immediately: each insert or remove shifts positions by at most one, so it is accounted for as
+ * drift added to the model's error bound, and the model is retrained once the drift exceeds learnedEpsilon.
+ */
+public class IntChunkIndex<V> implements ChunkIndex<Integer,V>
+{
+	/** immutable state of the index - min keys (ascending) and their chunks */
+	private static final class Snapshot<V>
+	{
+		final int[]					keys;
+		final Chunk<Integer,V>[]	chunks;
+		final PiecewiseLinearModel	model;	// null if not learned
+		final int					drift;	// max shift of positions since model was trained
+
+		Snapshot(int[] keys, Chunk<Integer,V>[] chunks, PiecewiseLinearModel model, int drift)
+		{
+			this.keys = keys;
+			this.chunks = chunks;
+			this.model = model;
+			this.drift = drift;
+		}
+	}
+
+	/*************** Members ***************/
+	private volatile Snapshot<V> snapshot;
+	private final int learnedEpsilon;	// error bound of the learned model, 0 for no model
+
+	/*************** Constructors ***************/
+	public IntChunkIndex()
+	{
+		this(0);
+	}
+
+	/** @param learnedEpsilon error bound (in positions) of a learned model used for lookups, or 0 for none */
+	public IntChunkIndex(int learnedEpsilon)
+	{
+		this.learnedEpsilon = learnedEpsilon;
+		this.snapshot = newSnapshot(new int[0], IntChunkIndex.<V>newChunks(0), null, 0);
+	}
+
+	/** bulk-loads the index with the given chunks, which must be sorted by (distinct) min keys */
+	public IntChunkIndex(List<? extends Chunk<Integer,V>> sortedChunks)
+	{
+		this(sortedChunks, 0);
+	}
+
+	public IntChunkIndex(List<? extends Chunk<Integer,V>> sortedChunks, int learnedEpsilon)
+	{
+		this.learnedEpsilon = learnedEpsilon;
+
+		int size = sortedChunks.size();
+		int[] keys = new int[size];
+		Chunk<Integer,V>[] chunks = newChunks(size);
+
+		for (int i = 0; i < size; ++i)
+		{
+			chunks[i] = sortedChunks.get(i);
+			keys[i] = chunks[i].minKey;
+
+			if ((i > 0) && (keys[i - 1] >= keys[i]))
+				throw new IllegalArgumentException("chunks are not sorted by min key");
+		}
+
+		this.snapshot = newSnapshot(keys, chunks, null, 0);
+	}
+
+	/*************** Methods ***************/
+
+	/** primitive-key counterpart of floor */
+	public Chunk<Integer,V> floorInt(int key)
+	{
+		Snapshot<V> s = snapshot;
+		int pos = (s.model == null) ? floorPosition(s.keys, 0, s.keys.length - 1, key) : predictedFloorPosition(s, key);
+		return (pos < 0) ? null : s.chunks[pos];
+	}
+
+	/** floor position of key, searched around the position predicted by the model of s */
+	private static <V> int predictedFloorPosition(Snapshot<V> s, int key)
+	{
+		int[] keys = s.keys;
+		int last = keys.length - 1;
+		int error = s.model.getErrorBound() + s.drift;
+		int predicted = s.model.predict(key);
+
+		int start = Math.max(0, predicted - error);
+		int end = Math.min(last, predicted + error);
+
+		// floor of key outside the window (shouldn't happen given the error bound) - search all keys
+		if ((start > end) || ((start > 0) && (keys[start] > key)) || ((end < last) && (keys[end + 1] <= key)))
+			return floorPosition(keys, 0, last, key);
+
+		return floorPosition(keys, start, end, key);
+	}
+
+	/** primitive-key counterpart of lower */
+	public Chunk<Integer,V> lowerInt(int key)
+	{
+		if (key == Integer.MIN_VALUE)
+			return null;
+
+		return floorInt(key - 1);
+	}
+
+	@Override
+	public Chunk<Integer,V> floor(Integer key)
+	{
+		return floorInt(key);
+	}
+
+	@Override
+	public Chunk<Integer,V> lower(Integer key)
+	{
+		return lowerInt(key);
+	}
+
+	@Override
+	public Chunk<Integer,V> first()
+	{
+		Snapshot<V> s = snapshot;
+		return (s.chunks.length == 0) ? null : s.chunks[0];
+	}
+
+	/** number of indexed chunks */
+	public int size()
+	{
+		return snapshot.keys.length;
+	}
+
+	@Override
+	public synchronized boolean putIfAbsent(Chunk<Integer,V> chunk)
+	{
+		Snapshot<V> s = snapshot;
+		int key = chunk.minKey;
+		int pos = floorPosition(s.keys, 0, s.keys.length - 1, key);
+
+		if ((pos >= 0) && (s.keys[pos] == key))
+			return false;
+
+		// insert after pos
+		int size = s.keys.length;
+		int[] keys = new int[size + 1];
+		Chunk<Integer,V>[] chunks = newChunks(size + 1);
+
+		System.arraycopy(s.keys, 0, keys, 0, pos + 1);
+		System.arraycopy(s.chunks, 0, chunks, 0, pos + 1);
+		keys[pos + 1] = key;
+		chunks[pos + 1] = chunk;
+		System.arraycopy(s.keys, pos + 1, keys, pos + 2, size - pos - 1);
+		System.arraycopy(s.chunks, pos + 1, chunks, pos + 2, size - pos - 1);
+
+		snapshot = newSnapshot(keys, chunks, s, 1);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean replace(Chunk<Integer,V> oldChunk, Chunk<Integer,V> newChunk)
+	{
+		Snapshot<V> s = snapshot;
+		int pos = position(s, oldChunk);
+		if (pos < 0)
+			return false;
+
+		Chunk<Integer,V>[] chunks = s.chunks.clone();
+		chunks[pos] = newChunk;
+
+		// keys are unchanged - the new chunk replaces the old one under the same min key
+		snapshot = newSnapshot(s.keys, chunks, s, 0);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean remove(Chunk<Integer,V> chunk)
+	{
+		Snapshot<V> s = snapshot;
+		int pos = position(s, chunk);
+		if (pos < 0)
+			return false;
+
+		int size = s.keys.length;
+		int[] keys = new int[size - 1];
+		Chunk<Integer,V>[] chunks = newChunks(size - 1);
+
+		System.arraycopy(s.keys, 0, keys, 0, pos);
+		System.arraycopy(s.chunks, 0, chunks, 0, pos);
+		System.arraycopy(s.keys, pos + 1, keys, pos, size - pos - 1);
+		System.arraycopy(s.chunks, pos + 1, chunks, pos, size - pos - 1);
+
+		snapshot = newSnapshot(keys, chunks, s, 1);
+		return true;
+	}
+
+	/** @return a snapshot of keys and chunks - its model is that of prev (accounting for 'shift' more drift),
+	 * or a newly trained one if prev has no model or the drift is too large */
+	private Snapshot<V> newSnapshot(int[] keys, Chunk<Integer,V>[] chunks, Snapshot<V> prev, int shift)
+	{
+		if (learnedEpsilon <= 0)
+			return new Snapshot<>(keys, chunks, null, 0);
+
+		if ((prev != null) && (prev.model != null) && (prev.drift + shift <= learnedEpsilon))
+			return new Snapshot<>(keys, chunks, prev.model, prev.drift + shift);
+
+		return new Snapshot<>(keys, chunks, new PiecewiseLinearModel(keys, keys.length, learnedEpsilon), 0);
+	}
+
+	/***************	Model Metrics		***************/
+
+	/** @return mean absolute distance between the predicted and the actual positions of the indexed min keys,
+	 * or -1 if the index has no learned model */
+	public double getModelMeanError()
+	{
+		Snapshot<V> s = snapshot;
+		if (s.model == null)
+			return -1;
+
+		long sum = 0;
+		for (int i = 0; i < s.keys.length; ++i)
+			sum += Math.abs(s.model.predict(s.keys[i]) - i);
+
+		return (s.keys.length == 0) ? 0 : (double) sum / s.keys.length;
+	}
+
+	/** @return max absolute distance between the predicted and the actual positions of the indexed min keys,
+	 * or -1 if the index has no learned model */
+	public int getModelMaxError()
+	{
+		Snapshot<V> s = snapshot;
+		if (s.model == null)
+			return -1;
+
+		int max = 0;
+		for (int i = 0; i < s.keys.length; ++i)
+			max = Math.max(max, Math.abs(s.model.predict(s.keys[i]) - i));
+
+		return max;
+	}
+
+	/** @return error bound currently used for lookups (model's bound + drift), or -1 if there's no learned model */
+	public int getModelErrorBound()
+	{
+		Snapshot<V> s = snapshot;
+		return (s.model == null) ? -1 : s.model.getErrorBound() + s.drift;
+	}
+
+	/** @return # of linear segments of the learned model, or -1 if there's no learned model */
+	public int getModelSegmentCount()
+	{
+		Snapshot<V> s = snapshot;
+		return (s.model == null) ? -1 : s.model.getSegmentCount();
+	}
+
+	/** @return position of chunk (indexed under its min key) in s, or -1 */
+	private static <V> int position(Snapshot<V> s, Chunk<Integer,V> chunk)
+	{
+		int key = chunk.minKey;
+		int pos = floorPosition(s.keys, 0, s.keys.length - 1, key);
+
+		if ((pos < 0) || (s.keys[pos] != key) || (s.chunks[pos] != chunk))
+			return -1;
+
+		return pos;
+	}
+
+	/** @return position of the greatest key in keys[start..end] that is less than or equal to key, or start - 1 */
+	private static int floorPosition(int[] keys, int start, int end, int key)
+	{
+		while (start <= end)
+		{
+			int mid = (start + end) >>> 1;
+
+			if (keys[mid] <= key)
+				start = mid + 1;
+			else
+				end = mid - 1;
+		}
+
+		return end;
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static <V> Chunk<Integer,V>[] newChunks(int size)
+	{
+		return new Chunk[size];
+	}
+}
@@ -1,28 +1,52 @@
 package kiwi;
 
-import kiwi.ThreadData.PutData;
 import kiwi.ThreadData.ScanData;
 import util.Utils;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K,V>
 {
 	/*************** Constants ***************/
-	public static int MAX_THREADS = 32;
+	public static int MAX_THREADS = 32;		// initial # of thread slots - more are added as threads register (ThreadRegistry)
 	public static final int PAD_SIZE = 640;
 	public static int RebalanceSize = 2;
+	public static boolean UseFingers = false;	// cache the last chunk of each thread, for sequential/clustered access
+	public static int RebalanceThreads = 0;		// threads rebalancing chunks that get full in the background, 0 for inline
+	public static boolean PackCompactedChunks = false;	// compacted chunks take the read-optimized packed layout, until a put
+	public static boolean BlockedSearch = true;		// compacted chunks search their sorted prefix in a cache-friendly layout
+	public static boolean BloomFilters = true;		// chunks with int/long keys keep a Bloom filter, answering gets of absent keys
+	public static int ScanVersionSpins = 16;		// # of times a scan waits for a concurrent scan to take a version it can share
+	private static final int PREV_MAX_STEPS = 8;	// # of chunks getPrev follows from the index before giving up
 
 	/*************** Members ***************/
-	private final ConcurrentSkipListMap<K , Chunk<K, V>>	skiplist;		// skiplist of chunks for fast navigation
-	private LowerUpperBounds sizeBounds;
-	protected AtomicInteger 							version;		// current version to add items with
-	private final boolean								withScan;		// support scan operations or not (scans add thread-array)
-	private final ScanData[]		scanArray;
+	protected final ChunkIndex<K, V>					chunkIndex;		// index of chunks for fast navigation
+	protected LowerUpperBounds sizeBounds;
+	protected AtomicLong 								version;		// current version to add items with
+	protected final boolean								withScan;		// support scan operations or not (scans add thread-array)
+	private final SlotArray<ScanData>					scanArray;
 	final boolean delayForLinearizabilityTesting;
+	private final ChunkReclaimer						reclaimer;		// releases rebalanced off-heap chunks, null if on-heap
+	private final ThreadLocal<Finger<K,V>>				fingers;		// last chunk located by each thread, null if disabled
+	private final ThreadLocal<ScanData<K,V>>			scanRecords;	// ScanData reused by all scans of each thread
+	private final RebalanceExecutor<K,V>				rebalanceExecutor;	// null if rebalancing inline
+
+	// per-thread buffer for order indexes of pending puts found by scans
+	private static final ThreadLocal<int[]> pendingPuts = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[MAX_THREADS];
+		}
+	};
+
+	/** per-thread cache of the last located chunk */
+	private static final class Finger<K extends Comparable<? super K>,V>
+	{
+		Chunk<K,V> chunk;
+	}
 
 
 	/*************** Constructors ***************/
@@ -31,36 +55,49 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		this(head, false, new LowerUpperBounds(true));
 	}
 	
-	@SuppressWarnings("unchecked")
 	public KiWi(Chunk<K,V> head, boolean withScan, LowerUpperBounds sizeBounds)
+	{
+		this(head, withScan, sizeBounds, new SkipListChunkIndex<K,V>());
+	}
+
+	@SuppressWarnings("unchecked")
+	public KiWi(Chunk<K,V> head, boolean withScan, LowerUpperBounds sizeBounds, ChunkIndex<K,V> chunkIndex)
 	{
 		this.sizeBounds = sizeBounds;
 
-		this.skiplist = new ConcurrentSkipListMap<>();
-		this.version = new AtomicInteger(2);	// first version is 2 - since 0 means NONE, and -1 means FREEZE
+		this.chunkIndex = chunkIndex;
+		this.version = new AtomicLong(2);	// first version is 2 - since 0 means NONE, and -1 means FREEZE
 
-		this.skiplist.put(head.minKey, head);	// add first chunk (head) into skiplist
+		this.chunkIndex.putIfAbsent(head);	// add first chunk (head) into index
 		this.withScan = withScan;
 
 		if (withScan) {
 			//this.threadArray = new ThreadData[MAX_THREADS];
-			this.scanArray = new ScanData[MAX_THREADS * (PAD_SIZE + 1)];
+			this.scanArray = new SlotArray<>(PAD_SIZE);
 		}
 		else {
 			//this.threadArray = null;
 			this.scanArray = null;
 		}
 		delayForLinearizabilityTesting = head.delayForLinearizabilityTesting;
-
+		this.reclaimer = head.isOffHeap() ? new ChunkReclaimer() : null;
+		this.fingers = UseFingers ? new ThreadLocal<Finger<K,V>>() {
+			@Override
+			protected Finger<K,V> initialValue() {
+				return new Finger<>();
+			}
+		} : null;
+		this.scanRecords = new ThreadLocal<ScanData<K,V>>() {
+			@Override
+			protected ScanData<K,V> initialValue() {
+				return newScanRecord();
+			}
+		};
+		this.rebalanceExecutor = (RebalanceThreads > 0) ? new RebalanceExecutor<>(this, RebalanceThreads) : null;
 	}
 
 	/*************** Methods ***************/
 
-	public static int pad(int idx)
-	{
-		return (PAD_SIZE + idx*PAD_SIZE);
-	}
-
 	public int lowerSizeBound(){
 		return sizeBounds.getLowerBound();
 	}
@@ -71,28 +108,51 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 
 	public V get(K key)
 	{
-		// find chunk matching key
-		Chunk<K,V> c = skiplist.floorEntry(key).getValue();
-		c = iterateChunks(c, key);
-
-		// help concurrent put operations (helpPut) set a version
-		PutData<K,V> pd = null;
-		pd = c.helpPutInGet(version.get(), key);
-//		if(pd != null) {
-//			System.out.println("pd in get()");
-//			c.printData(pd.orderIndex);
-//		}
+		enterOperation();
+		try
+		{
+			// find chunk matching key
+			Chunk<K,V> c = locateChunk(key);
+
+			// no item has the key - nor does a put that took effect
+			if (!c.mayContain(key))
+				return null;
+
+			// help concurrent put operations (helpPut) set a version
+			int pendingOi = c.helpPutInGet(version, key);
+//			if(pendingOi != Chunk.NONE) {
+//				System.out.println("pending put in get()");
+//				c.printData(pendingOi);
+//			}
+
+//			if(Math.random() < 0.5){
+//				c.printLinkedList();
+//			}
+			// find item matching key inside chunk
+			return c.find(key, pendingOi);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
 
-//		if(Math.random() < 0.5){
-//			c.printLinkedList();
-//		}
-		// find item matching key inside chunk
-		return c.find(key, pd);
+	public void put(K key, V val)
+	{
+		enterOperation();
+		try
+		{
+			doPut(key, val);
+		}
+		finally
+		{
+			exitOperation();
+		}
 	}
 
-	public void put(K key, V val){
+	private void doPut(K key, V val){
 		// find chunk matching key
-		Chunk<K,V> c = skiplist.floorEntry(key).getValue();
+		Chunk<K,V> c = locateChunk(key);
 		
 		// repeat until put operation is successful
 		while (true) {
@@ -132,7 +192,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 				// publishing BEFORE setting the version so that other operations can see our value and help
 				// this is in order to prevent us from adding an item with an older version that might be missed by others (scan/get)
 
-				c.publishPut(new PutData<>(c, oi));
+				c.publishPut(oi);
 
 
 				if (c.isFreezed()) {
@@ -141,7 +201,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 						// Undo speculative add/remove. Version was NONE, it wasn't seen by anyone.
 						sizeBounds.undoPut(val == null);
 						Utils.randomDelay(delayForLinearizabilityTesting, 1);
-						c.publishPut(null);
+						c.publishPut(Chunk.NONE);
 						c = rebalance(c);
 
 						continue;
@@ -153,7 +213,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			// try to update the version to current version, but use whatever version is successfuly set
 			// reading & setting version AFTER publishing ensures that anyone who sees this put op has
 			// a version which is at least the version we're setting, or is otherwise setting the version itself
-			int myVersion = c.setVersion(oi, this.version.get());
+			long myVersion = c.setVersion(oi, this.version.get());
 
 			// Slow put after setting version - raise the chance that a parallel Put with higher orderIndex,
 			// will run addToList() before us.
@@ -164,7 +224,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 				// Undo speculative add/remove. Version was NONE, it wasn't seen by anyone.
 				sizeBounds.undoPut(val == null);
 				// clear thread-array item if needed
-				c.publishPut(null);
+				c.publishPut(Chunk.NONE);
 				Utils.randomDelay(delayForLinearizabilityTesting, 1);
 				c = rebalance(c);
 				continue;
@@ -175,26 +235,62 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			c.addToList(oi, key);
 			Utils.randomDelay(delayForLinearizabilityTesting, 1);
 			// delete operation from thread array - and done
-			c.publishPut(null);
+			c.publishPut(Chunk.NONE);
 
-			if (shouldRebalance(c)){
-				rebalance(c);
-			}
+			rebalanceIfNeeded(c);
 
 			break;
 		}
 //		System.out.format("done put %d %d tid=%d\n", (Integer)key, (Integer)val, KiWi.threadId());
 	}
 
-	private boolean shouldRebalance(Chunk<K, V> c) {
-		// perform actual check only in for pre defined percentage of puts
-		if(ThreadLocalRandom.current().nextInt(100) > Parameters.rebalanceProbPerc) return false;
+	/** rebalances c (after a put) if it is getting full - in the background if enabled, otherwise inline */
+	protected final void rebalanceIfNeeded(Chunk<K,V> c)
+	{
+		rebalanceIfNeeded(c, 1);
+	}
+
+	/** same as rebalanceIfNeeded(c), after a batch put of # puts items into c */
+	protected final void rebalanceIfNeeded(Chunk<K,V> c, int puts)
+	{
+		if (!shouldRebalance(c, puts))
+			return;
+
+		if (rebalanceExecutor != null)
+			rebalanceExecutor.submit(c);
+		else
+			rebalance(c);
+	}
+
+	/** @return the background rebalancing executor (e.g. for its metrics), or null if rebalancing inline */
+	public RebalanceExecutor<K,V> getRebalanceExecutor()
+	{
+		return rebalanceExecutor;
+	}
+
+	/** rebalances a chunk queued by rebalanceIfNeeded, on an executor thread */
+	final void rebalanceInBackground(Chunk<K,V> c)
+	{
+		enterOperation();
+		try
+		{
+			rebalance(c);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	protected boolean shouldRebalance(Chunk<K, V> c, int puts) {
+		// perform actual check only in for pre defined percentage of puts (a batch put counts its items)
+		if(ThreadLocalRandom.current().nextInt(100) > Parameters.rebalanceProbPerc * puts) return false;
 
 		// if another thread already runs rebalance -- skip it
 		if(!c.isEngaged(null)) return false;
 		int numOfItems = c.getNumOfItems();
 
-		if((c.sortedCount == 0 && numOfItems << 3 > Chunk.MAX_ITEMS ) ||
+		if((c.sortedCount == 0 && numOfItems << 3 > c.getCapacity() ) ||
 				(c.sortedCount > 0 && (c.sortedCount * Parameters.sortedRebalanceRatio) < numOfItems) )
 		{
 			return true;
@@ -205,20 +301,22 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 
 	public void compactAllSerial()
 	{
-		Chunk<K,V> c  = skiplist.firstEntry().getValue();
+		Chunk<K,V> c  = chunkIndex.first();
 		while(c!= null)
 		{
-			c = rebalance(c);
-			c =c.next.getReference();
+			// go on after the rebalanced range - it may start before c (engaging backward), so the
+			// chunk following the first compacted one may already be compacted
+			List<Chunk<K,V>> compacted = rebalanceRange(c);
+			c = compacted.get(compacted.size() - 1).next.getReference();
 		}
 
-		c = skiplist.firstEntry().getValue();
+		c = chunkIndex.first();
 
 		while(c!= null)
 		{
 			Chunk.ItemsIterator iter = c.itemsIterator();
 			Comparable prevKey = null;
-			int prevVersion = 0;
+			long prevVersion = 0;
 
 			if(iter.hasNext()) {
 				iter.next();
@@ -230,7 +328,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 				iter.next();
 
 				Comparable key = iter.getKey();
-				int version = iter.getVersion();
+				long version = iter.getVersion();
 
 				int cmp = prevKey.compareTo(key);
 				if (cmp >= 0)
@@ -276,17 +374,30 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return size - nullCount;
 	}
 
-	public int scan(V[] resultValues, K[] resultKeys, boolean addKeys, K min, K max) {
+	public int scan(V[] resultValues, K[] resultKeys, boolean addKeys, K min, K max)
+	{
+		enterOperation();
+		try
+		{
+			return doScan(resultValues, resultKeys, addKeys, min, max);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	private int doScan(V[] resultValues, K[] resultKeys, boolean addKeys, K min, K max) {
 		// get current version and increment version (atomically) for this scan
 		// all items beyond my version are ignored by this scan
 		// the newVersion() method is used to ensure my version is published correctly,
 		// so concurrent split ops will not compact items with this version (ensuring linearizability)
-		int myVer = newVersion(min, max);
+		long myVer = newVersion(min, max);
 
 
 		// find chunk matching min key, to start iterator there
-		Chunk<K,V> c = skiplist.floorEntry(min).getValue();
-		c = iterateChunks(c, min);
+		Chunk<K,V> c = locateChunk(min);
+		int[] pending = pendingPutsBuffer();
 
 		int itemsCount = 0;
 		while(true)
@@ -295,11 +406,11 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			if(c == null || c.minKey.compareTo(max)>0)
 				break;
 
-			// help pending put ops set a version - and get in a sorted map for use in the scan iterator
+			// help pending put ops set a version - and get them sorted by key for the merge in copyRange
 			// (so old put() op doesn't suddently set an old version this scan() needs to see,
 			//  but after the scan() passed it)
-			SortedMap<K,PutData<K,V>> items = c.helpPutInScan(myVer, min, max);
-			itemsCount += c.copyRange(resultValues, resultKeys, addKeys, itemsCount, myVer, min, max, items);
+			int pendingCount = c.helpPutInScan(myVer, version, min, max, pending);
+			itemsCount += c.copyRange(resultValues, resultKeys, addKeys, itemsCount, myVer, min, max, pending, pendingCount);
 			c = c.next.getReference();
 		}
 		int noNullsCount = removeNulls(resultValues, resultKeys, addKeys, itemsCount);
@@ -315,49 +426,166 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return chunk.next.getReference();
 	}
 
+	/** the chunk preceding the given one in the list - looked up in the index, and validated (or corrected) by
+	 * following next pointers, since the index may lag behind the list.
+	 * @return the predecessor, or null if none was found within a few steps (rebalance then just does not merge it) */
 	@Override
 	public Chunk<K,V> getPrev(Chunk<K,V> chunk)
 	{
-		return null;
-/*
-		Map.Entry<K, Chunk<K, V>> kChunkEntry = skiplist.lowerEntry(chunk.minKey);
-		if(kChunkEntry == null) return null;
-		Chunk<K,V> prev = kChunkEntry.getValue();
+		Chunk<K,V> prev = chunkIndex.lower(chunk.minKey);
 
-		while(true)
+		for (int steps = 0; (prev != null) && (steps < PREV_MAX_STEPS); ++steps)
 		{
 			Chunk<K,V> next = prev.next.getReference();
-			if(next == chunk) break;
-			if(next == null) {
-				prev = null;
-				break;
-			}
+			if (next == chunk)
+				return prev;
+
+			// passed chunk's position - chunk is no longer in the list
+			if ((next == null) || (next.minKey.compareTo(chunk.minKey) >= 0))
+				return null;
 
 			prev = next;
 		}
 
-		return prev;
-*/
+		return null;
+	}
+
+	/** marks the start of a map operation - chunks it may reach are not released until exitOperation() */
+	protected final void enterOperation()
+	{
+		if (reclaimer != null)
+			reclaimer.enter();
+	}
+
+	protected final void exitOperation()
+	{
+		if (reclaimer != null)
+			reclaimer.exit();
+	}
+
+	/** stops background rebalancing and releases the memory of all chunks kept off-heap.
+	 * may be called only when no operation is running, and the map must not be used afterwards */
+	public void close()
+	{
+		if (rebalanceExecutor != null)
+			rebalanceExecutor.shutdown();
+
+		if (reclaimer == null)
+			return;
+
+		reclaimer.releaseAll();
+
+		Chunk<K,V> chunk = chunkIndex.first();
+		while (chunk != null)
+		{
+			Chunk<K,V> next = chunk.next.getReference();
+			chunk.release();
+			chunk = next;
+		}
 	}
 
 	/** fetch-and-add for the version counter. in a separate method because scan() ops need to use
 	 * thread-array for this, to make sure concurrent split/compaction ops are aware of the scan() */
-	private int newVersion(K min, K max)
+	protected long newVersion(K min, K max)
+	{
+		// reset the thread's ScanData and publish it - in it the scan's version will be stored
+		ScanData<K,V> sd = scanRecords.get();
+		sd.reset(min, max);
+		return newVersion(sd);
+	}
+
+	/** same as newVersion(min, max), for the thread's record (see scanRecord) already reset for the new scan */
+	protected final long newVersion(ScanData<K,V> sd)
 	{
-		// create new ScanData and publish it - in it the scan's version will be stored
-		ScanData sd = new ScanData(min, max);
+		long state = sd.getState();
 		publishScan(sd);
 		
-		// increment global version counter and get latest
-		int myVer = version.getAndIncrement();
+		// take a version no put takes from now on - shared with concurrent scans when possible
+		long myVer = closeVersion(ScanVersionSpins);
 		
 		// try to set it as this scan's version - return whatever is successfuly set
-		if (sd.version.compareAndSet(Chunk.NONE, myVer))
+		if (sd.trySetVersion(state, myVer))
 			return myVer;
 		else
-			return sd.version.get();
+			return sd.getVersion();
 	}
 	
+	/***
+	 * Takes a version for scans published before the call: the current version, once the counter moves past it -
+	 * puts take the current version, so none takes it afterwards. The counter is moved by a single CAS, and if a
+	 * concurrent scan (or a helper) moves it first, the version is shared rather than incremented again. So scans
+	 * starting together cost a single increment, and compaction keeps a single version for all of them (ScanIndex).
+	 * @param spins # of times to wait for another thread to move the counter before trying to
+	 * @return the version
+	 */
+	private long closeVersion(int spins)
+	{
+		long ver = version.get();
+
+		for (int i = 0; i < spins; ++i)
+		{
+			if (version.get() != ver)
+				return ver;
+		}
+
+		// whether the CAS succeeds or not, the counter has moved past ver since it was read
+		version.compareAndSet(ver, ver + 1);
+		return ver;
+	}
+
+	/** finds and returns the chunk where key should be located - the thread's finger chunk if key is in its range,
+	 * otherwise through the index */
+	private Chunk<K,V> locateChunk(K key)
+	{
+		Chunk<K,V> c = getFinger();
+		if ((c != null) && (c.minKey.compareTo(key) <= 0))
+		{
+			Chunk<K,V> next = c.next.getReference();
+			if ((next == null) || (next.minKey.compareTo(key) > 0))
+				return c;
+		}
+
+		c = iterateChunks(chunkIndex.floor(key), key);
+		setFinger(c);
+		return c;
+	}
+
+	/** @return the chunk last located by the current thread, or null if fingers are disabled or the chunk is being
+	 * rebalanced (it is engaged before it is frozen) - as if taken from the index, once rebalanced a chunk may
+	 * miss newer puts. the caller must still check that its key is in the chunk's range */
+	protected final Chunk<K,V> getFinger()
+	{
+		if (fingers == null)
+			return null;
+
+		Chunk<K,V> c = fingers.get().chunk;
+		if ((c == null) || (c.rebalancer.get() != null))
+			return null;
+
+		return c;
+	}
+
+	protected final void setFinger(Chunk<K,V> c)
+	{
+		if (fingers != null)
+			fingers.get().chunk = c;
+	}
+
+	/** @return the current thread's buffer for order indexes of pending puts found by a scan (see helpPutInScanInt),
+	 * large enough for all threads registered so far. call after taking the scan version */
+	protected static int[] pendingPutsBuffer()
+	{
+		int[] pending = pendingPuts.get();
+		int slots = ThreadRegistry.maxSlots();
+		if (pending.length < slots)
+		{
+			pending = new int[2 * slots];
+			pendingPuts.set(pending);
+		}
+
+		return pending;
+	}
+
 	/** finds and returns the chunk where key should be located, starting from given chunk */
 	private Chunk<K,V> iterateChunks(Chunk<K,V> c, K key)
 	{
@@ -376,62 +604,89 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return c;
 	}
 
-	private ArrayList<ScanData> getScansArray(int myVersion)
+	/** @return snapshots of all pending scans, with their versions set (helping scans that have none) */
+	private ArrayList<ScanData> getScansArray(long myVersion)
 	{
 
 		ArrayList<ScanData> pScans = new ArrayList<>(MAX_THREADS);
 		boolean isIncremented = false;
-		int ver = -1;
+		long ver = -1;
 
-		// read all pending scans
-		for(int i = 0; i < MAX_THREADS; ++i)
+		// scans are not published when not supported
+		if(scanArray == null) return pScans;
+
+		// read all pending scans of registered threads, along with their states. the states must all be read
+		// before the version is taken: a scan is given a version taken after it started, so it sees every put
+		// completed before it started (a state read later may be of a later scan of a reused record)
+		int slots = ThreadRegistry.maxSlots();
+		long[] states = new long[slots];
+		for(int i = 0; i < slots; ++i)
 		{
-			ScanData scan = scanArray[pad(i)];
-			if(scan != null)  pScans.add(scan);
+			ScanData scan = scanArray.get(i);
+			if(scan == null) continue;
+
+			states[pScans.size()] = scan.getState();
+			pScans.add(scan);
 		}
 
 
-		for(ScanData sd : pScans)
+		ArrayList<ScanData> snapshots = new ArrayList<>(pScans.size());
+		for(int i = 0; i < pScans.size(); ++i)
 		{
-			if(sd.version.get() == Chunk.NONE)
+			ScanData<K,?> sd = pScans.get(i);
+			long state = states[i];
+			if(ScanData.version(state) == Chunk.NONE)
 			{
 				if(!isIncremented) {
-					// increments version only once
+					// takes a version only once
 					// if at least one pending scan has no version assigned
-					ver = version.getAndIncrement();
+					ver = closeVersion(0);
 					isIncremented = true;
 				}
 
-				sd.version.compareAndSet(Chunk.NONE,ver);
+				sd.trySetVersion(state, ver);
 			}
+
+			// the record is reused by its thread's next scans - take a consistent snapshot of its current scan.
+			// a state is never repeated (see ScanData), so an unchanged state means an unchanged scan. a scan
+			// with no version started after we read the slot (the one seen above was helped) - skip it
+			long curr = sd.getState();
+			K min = sd.getMin();
+			K max = sd.getMax();
+			if((ScanData.version(curr) == Chunk.NONE) || (curr != sd.getState()))
+				continue;
+
+			snapshots.add(new ScanData<>(min, max, ScanData.version(curr)));
 		}
 
-		return pScans;
+		return snapshots;
 	}
 
-	private TreeSet<Integer> getScans(int myVersion)
+	private TreeSet<Long> getScans(long myVersion)
 	{
-		TreeSet<Integer> scans = new TreeSet<>();
+		TreeSet<Long> scans = new TreeSet<>();
 		
-		// go over thread data of all threads
-		for (int i = 0; i < MAX_THREADS; ++i)
+		// go over thread data of all registered threads
+		int slots = ThreadRegistry.maxSlots();
+		for (int i = 0; i < slots; ++i)
 		{
 			// make sure data is for a Scan operation
-			ScanData currScan = scanArray[pad(i)];
+			ScanData currScan = scanArray.get(i);
 			if (currScan == null)
 				continue;
 			
 			// if scan was published but didn't yet CAS its version - help it
-			if (currScan.version.get() == Chunk.NONE)
+			long state = currScan.getState();
+			if (ScanData.version(state) == Chunk.NONE)
 			{
 				// TODO: understand if we need to increment here
-				int ver = version.getAndIncrement();
-				currScan.version.compareAndSet(Chunk.NONE, ver);
+				long ver = closeVersion(0);
+				currScan.trySetVersion(state, ver);
 			}
 			
-			// read the scan version (which is now set)
-			int verScan = currScan.version.get();
-			if (verScan < myVersion)
+			// read the scan version (which is now set, unless the record was reused by a later scan)
+			long verScan = currScan.getVersion();
+			if ((verScan != Chunk.NONE) && (verScan < myVersion))
 			{
 				scans.add(verScan);
 			}
@@ -440,7 +695,14 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		return scans;
 	}
 
-	private Chunk<K,V> rebalance(Chunk<K,V> chunk)
+	protected Chunk<K,V> rebalance(Chunk<K,V> chunk)
+	{
+		return rebalanceRange(chunk).get(0);
+	}
+
+	/** rebalances the range engaged around chunk
+	 * @return the chunks replacing the range */
+	private List<Chunk<K,V>> rebalanceRange(Chunk<K,V> chunk)
 	{
 
 //		if(debugCurrentInsert != null)
@@ -469,16 +731,20 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		connectToChunkList(engaged, compacted);
 		updateIndex(engaged, compacted);
 
-		return compacted.get(0);
+		// engaged chunks are now unreachable from the list and the index - release them once
+		// operations that may still hold them are done (only one of the rebalancing threads retires them)
+		if ((reclaimer != null) && rebalancer.markRetired())
+			reclaimer.retire(engaged);
+
+		return compacted;
 	}
 
-	private ScanIndex updateAndGetPendingScans(int currVersion, List<Chunk<K, V>> engaged) {
-		// TODO: implement versions selection by key
+	private ScanIndex<K> updateAndGetPendingScans(long currVersion, List<Chunk<K, V>> engaged) {
 		K minKey = engaged.get(0).minKey;
 		Chunk<K,V> nextToRange= engaged.get(engaged.size() -1).next.getReference();
 		K maxKey =  nextToRange == null ? null : nextToRange.minKey;
 
-		return new ScanIndex(getScansArray(currVersion), currVersion, minKey, maxKey);
+		return new ScanIndex<>(getScansArray(currVersion), currVersion, minKey, maxKey);
 	}
 
 	private void updateIndex(List<Chunk<K,V>> engagedChunks, List<Chunk<K,V>> compacted)
@@ -489,7 +755,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		Chunk<K,V> firstEngaged = iterEngaged.next();
 		Chunk<K,V> firstCompacted = iterCompacted.next();
 
-		skiplist.replace(firstEngaged.minKey,firstEngaged, firstCompacted);
+		chunkIndex.replace(firstEngaged, firstCompacted);
 
 		// update from infant to normal
 		firstCompacted.creator = null;
@@ -500,11 +766,11 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		while(iterEngaged.hasNext())
 		{
 			Chunk<K,V> engagedToRemove = iterEngaged.next();
-			skiplist.remove(engagedToRemove.minKey,engagedToRemove);
+			chunkIndex.remove(engagedToRemove);
 		}
 
 		// for simplicity -  naive lock implementation
-		// can be implemented without locks using versions on next pointer in  skiplist
+		// can be implemented without locks using versions on next pointer in  index
 
 		while(iterCompacted.hasNext())
 		{
@@ -512,8 +778,12 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 
 			synchronized (compactedToAdd)
 			{
-				skiplist.putIfAbsent(compactedToAdd.minKey,compactedToAdd);
-				compactedToAdd.creator = null;
+				// once creator is cleared the chunk is indexed, and may already be rebalanced and removed from
+				// the index - so a late helper must not add it again
+				if (compactedToAdd.creator != null) {
+					chunkIndex.putIfAbsent(compactedToAdd);
+					compactedToAdd.creator = null;
+				}
 			}
 		}
 	}
@@ -531,15 +801,13 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		{
 			// start with first chunk (i.e., head)
 
-			Map.Entry<K,Chunk<K,V>> lowerEntry = skiplist.lowerEntry(firstEngaged.minKey);
-
-			Chunk<K,V> prev = lowerEntry != null ? lowerEntry.getValue() : null;
+			Chunk<K,V> prev = chunkIndex.lower(firstEngaged.minKey);
 			Chunk<K,V> curr = (prev != null) ? prev.next.getReference() : null;
 
 			// if didn't succeed to find preve through the skip list -- start from the head
 			if(prev == null || curr != firstEngaged) {
 				prev = null;
-				curr = skiplist.firstEntry().getValue();    // TODO we can store&update head for a little efficiency
+				curr = chunkIndex.first();    // TODO we can store&update head for a little efficiency
 				// iterate until found chunk or reached end of list
 				while ((curr != firstEngaged) && (curr != null)) {
 					prev = curr;
@@ -579,20 +847,27 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	}
 
 	public static int threadId(){
-		return (int) (Thread.currentThread().getId() % MAX_THREADS);
+		return ThreadRegistry.slot();
+	}
+
+
+	/** @return a new scan record for a thread - subclasses may keep the scan's range unboxed in it */
+	protected ScanData<K,V> newScanRecord()
+	{
+		return new ScanData<>();
 	}
 
+	/** @return the current thread's scan record, reused by all its scans (see newVersion) */
+	protected final ScanData<K,V> scanRecord()
+	{
+		return scanRecords.get();
+	}
 
 	/** publish data into thread array - use null to clear **/
-	private void publishScan(ScanData data)
+	protected void publishScan(ScanData<K,V> data)
 	{
-		// get index of current thread
-		// since thread IDs are increasing and changing, we assume threads are created one after another (sequential IDs).
-		// thus, (ThreadID % MAX_THREADS) will return a unique index for each thread in range [0, MAX_THREADS)
-		int idx = (int) (Thread.currentThread().getId() % MAX_THREADS);
-		
-		// publish into thread array
-		scanArray[pad(idx)] = data;
+		// publish into the slot of the current thread
+		scanArray.set(ThreadRegistry.slot(), data);
 		//Chunk.unsafe.storeFence();
 	}
 
@@ -600,7 +875,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	public int debugCountKeys()
 	{
 		int keys = 0;
-		Chunk<K,V> chunk = skiplist.firstEntry().getValue();
+		Chunk<K,V> chunk = chunkIndex.first();
 		
 		while (chunk != null)
 		{
@@ -613,7 +888,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	public int debugCountKeysTotal()
 	{
 		int keys = 0;
-		Chunk<K,V> chunk = skiplist.firstEntry().getValue();
+		Chunk<K,V> chunk = chunkIndex.first();
 
 		while (chunk != null)
 		{
@@ -625,7 +900,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	public int debugCountDups()
 	{
 		int dups = 0;
-		Chunk<K,V> chunk = skiplist.firstEntry().getValue();
+		Chunk<K,V> chunk = chunkIndex.first();
 		
 		while (chunk != null)
 		{
@@ -636,7 +911,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 	}
 	public void debugPrint()
 	{
-		Chunk<K,V> chunk = skiplist.firstEntry().getValue();
+		Chunk<K,V> chunk = chunkIndex.first();
 		
 		while (chunk != null)
 		{
@@ -669,11 +944,15 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		System.out.println("Duplicates count: "  + ds.duplicatesCount/ds.chunksCount);
 		System.out.println();
 
+		System.out.println("Bloom filter bytes: " + ds.bloomFilterBytes/ds.chunksCount);
+		System.out.format("Bloom filter false positive rate: %.4f\n", ds.bloomFalsePositiveRate());
+		System.out.println();
+
 	}
 
 	public DebugStats calcChunkStatistics()
 	{
-		Chunk<K,V> curr = skiplist.firstEntry().getValue();
+		Chunk<K,V> curr = chunkIndex.first();
 		DebugStats ds = new DebugStats();
 
 		while(curr != null)
@@ -689,7 +968,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 
 	public int debugCountDuplicates() {
 		List<Chunk<K,V>> chunks = new LinkedList<>();
-		Chunk<K,V> curr= skiplist.firstEntry().getValue();
+		Chunk<K,V> curr= chunkIndex.first();
 
 		while(curr != null)
 		{
@@ -704,7 +983,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 		iter.next();
 
 		K prevKey = iter.getKey();
-		int prevVersion = iter.getVersion();
+		long prevVersion = iter.getVersion();
 		int duplicates = 0;
 		int total = 0;
 		int nullItems = 0;
@@ -716,7 +995,7 @@ public class KiWi<K extends Comparable<? super K>, V> implements ChunkIterator<K
 			K currKey = iter.getKey();
 			V val = iter.getValue();
 
-			int currVersion = iter.getVersion();
+			long currVersion = iter.getVersion();
 
 			if(currKey.equals(prevKey))
 				duplicates++;
@@ -0,0 +1,384 @@
+package kiwi;
+
+import java.util.Arrays;
+
+import util.Utils;
+
+/**
+ * KiWi over ChunkIntInt chunks, adding int-to-int operations that do not box keys or values inside the chunks.
+ * The generic (boxed) operations of KiWi remain available and operate on the same data.
+ */
+public class KiWiInt extends KiWi<Integer,Integer>
+{
+	private final IntChunkIndex<Integer> intIndex;	// same as chunkIndex - looked up without boxing the key
+
+	/*************** Constructors ***************/
+	public KiWiInt(ChunkIntInt head, boolean withScan, LowerUpperBounds sizeBounds)
+	{
+		this(head, withScan, sizeBounds, new IntChunkIndex<Integer>());
+	}
+
+	public KiWiInt(ChunkIntInt head, boolean withScan, LowerUpperBounds sizeBounds, IntChunkIndex<Integer> index)
+	{
+		super(head, withScan, sizeBounds, index);
+		this.intIndex = index;
+	}
+
+	/*************** Methods ***************/
+
+	/** @return the chunk index, e.g. for the metrics of its learned model */
+	public IntChunkIndex<Integer> getIntIndex()
+	{
+		return intIndex;
+	}
+
+	/** @return the value of key, or 'missing' if key is absent */
+	public int getInt(int key, int missing)
+	{
+		enterOperation();
+		try
+		{
+			// find chunk matching key
+			ChunkIntInt c = (ChunkIntInt) locateChunkInt(key);
+
+			// no item has the key - nor does a put that took effect
+			if (!c.mayContainInt(key))
+				return missing;
+
+			// help concurrent put operations set a version, then find item matching key inside chunk
+			int oi = c.findInt(key, c.helpPutInGetInt(version, key));
+
+			if ((oi == Chunk.NONE) || c.isRemoved(oi))
+				return missing;
+
+			return c.readInt(oi);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	/** puts val for key, or removes key if 'remove' is set (val is then ignored). same algorithm as KiWi.put */
+	public void putInt(int key, int val, boolean remove)
+	{
+		enterOperation();
+		try
+		{
+			doPutInt(key, val, remove);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	private void doPutInt(int key, int val, boolean remove)
+	{
+		// find chunk matching key
+		Chunk<Integer,Integer> c = locateChunkInt(key);
+
+		// repeat until put operation is successful
+		while (true) {
+			c = iterateChunksInt(c, key);
+
+			// if chunk is infant chunk (has a parent), we can't add to it
+			// we need to help finish compact for its parent first, then proceed
+			{
+				Chunk<Integer,Integer> parent = c.creator;
+				if (parent != null) {
+					if (rebalance(parent) == null)
+						return;
+				}
+			}
+
+			// allocate space in chunk for key & value
+			int oi = ((ChunkIntInt) c).allocateInt(key, val, remove);
+
+			// if failed - chunk is full, compact it & retry
+			if (oi < 0) {
+				c = rebalance(c);
+				if (c == null)
+					return;
+				continue;
+			}
+
+			sizeBounds.startInsert(remove);
+			if (withScan) {
+				// publishing BEFORE setting the version so that other operations can see our value and help
+				c.publishPut(oi);
+
+				if (c.isFreezed()) {
+					// if succeeded to freeze item -- it is not accessible, need to reinsert it in rebalanced chunk
+					if (c.tryFreezeItem(oi)) {
+						sizeBounds.undoPut(remove);
+						Utils.randomDelay(delayForLinearizabilityTesting, 1);
+						c.publishPut(Chunk.NONE);
+						c = rebalance(c);
+
+						continue;
+					}
+				}
+			}
+			Utils.randomDelay(delayForLinearizabilityTesting, 10);
+			long myVersion = c.setVersion(oi, this.version.get());
+
+			Utils.randomDelay(delayForLinearizabilityTesting, 20);
+			// if chunk is frozen, clear published data, compact it and retry
+			if (myVersion == Chunk.FREEZE_VERSION) {
+				sizeBounds.undoPut(remove);
+				c.publishPut(Chunk.NONE);
+				Utils.randomDelay(delayForLinearizabilityTesting, 1);
+				c = rebalance(c);
+				continue;
+			}
+
+			c.addToListInt(oi, key);
+			Utils.randomDelay(delayForLinearizabilityTesting, 1);
+			// delete operation from thread array - and done
+			c.publishPut(Chunk.NONE);
+
+			rebalanceIfNeeded(c);
+
+			break;
+		}
+	}
+
+	/** puts vals[i] for keys[i], for each i - as putInt would one by one (the last value of a repeated key is
+	 * put), but the keys that go into the same chunk are put together, as one run (see putRun).
+	 * the puts of a batch take effect in no particular order - as concurrent puts would
+	 * @throws IllegalArgumentException if keys and vals differ in length */
+	public void putBatch(int[] keys, int[] vals)
+	{
+		if (vals.length != keys.length)
+			throw new IllegalArgumentException("putBatch with " + keys.length + " keys and " + vals.length + " values");
+
+		int count = keys.length;
+
+		// sort by key, keeping the last value of each key
+		if (!isSortedDistinct(keys))
+		{
+			long[] order = new long[count];
+			for (int i = 0; i < count; ++i)
+				order[i] = ((long) keys[i] << 32) | i;
+			Arrays.sort(order);
+
+			int[] sortedKeys = new int[count];
+			int[] sortedVals = new int[count];
+			int n = 0;
+			for (long o : order)
+			{
+				int key = (int) (o >>> 32);
+				if ((n > 0) && (sortedKeys[n - 1] == key))
+					--n;
+
+				sortedKeys[n] = key;
+				sortedVals[n] = vals[(int) o];
+				++n;
+			}
+
+			keys = sortedKeys;
+			vals = sortedVals;
+			count = n;
+		}
+
+		int from = 0;
+		while (from < count)
+		{
+			enterOperation();
+			try
+			{
+				from = putRun(keys, vals, from, count);
+			}
+			finally
+			{
+				exitOperation();
+			}
+		}
+	}
+
+	private static boolean isSortedDistinct(int[] keys)
+	{
+		for (int i = 1; i < keys.length; ++i)
+			if (keys[i - 1] >= keys[i])
+				return false;
+
+		return true;
+	}
+
+	/***
+	 * Puts the keys from 'from' that go into the chunk of keys[from] - same algorithm as doPutInt, but for a run
+	 * of items: they are allocated together (by a single increment of the chunk's arrays), published together,
+	 * versioned by a single read of the version, and each is linked starting from the one before it.
+	 * Items frozen by a rebalance before they got a version are put again - together if all of them were.
+	 *
+	 * @param keys sorted and distinct
+	 * @return index of the first key not put
+	 */
+	private int putRun(int[] keys, int[] vals, int from, int to)
+	{
+		// find chunk matching key
+		Chunk<Integer,Integer> c = locateChunkInt(keys[from]);
+
+		// repeat until put operation is successful
+		while (true) {
+			c = iterateChunksInt(c, keys[from]);
+
+			// if chunk is infant chunk (has a parent), we can't add to it
+			// we need to help finish compact for its parent first, then proceed
+			{
+				Chunk<Integer,Integer> parent = c.creator;
+				if (parent != null) {
+					if (rebalance(parent) == null)
+						return to;
+				}
+			}
+
+			// keys up to the next chunk, as many as fit - leaving an item free, as a full chunk is taken
+			// for a frozen one (see isFreezed)
+			Chunk<Integer,Integer> next = c.next.getReference();
+			int end = (next == null) ? to : runEnd(keys, from, to, next.minKey);
+			int count = Math.min(end - from, c.getCapacity() - c.getNumOfItems() - 1);
+
+			// allocate space in chunk for the keys & values
+			int first = (count > 0) ? ((ChunkIntInt) c).allocateRun(keys, vals, from, count) : -1;
+
+			// if failed - chunk is full, compact it & retry
+			if (first < 0) {
+				c = rebalance(c);
+				if (c == null)
+					return to;
+				continue;
+			}
+
+			int last = first + (count - 1) * Chunk.ORDER_SIZE;
+			for (int i = 0; i < count; ++i)
+				sizeBounds.startInsert(false);
+
+			if (withScan) {
+				// publishing BEFORE setting the versions so that other operations can see our values and help
+				c.publishRun(first, last);
+
+				// freeze the items that have no version - they are put again in the rebalanced chunk
+				if (c.isFreezed()) {
+					for (int oi = first; oi <= last; oi += Chunk.ORDER_SIZE)
+						c.tryFreezeItem(oi);
+				}
+			}
+
+			// one version for all items, read after publishing them (see doPutInt)
+			long myVersion = this.version.get();
+			int frozen = 0;
+			int ancor = Chunk.NONE;
+			for (int oi = first; oi <= last; oi += Chunk.ORDER_SIZE)
+			{
+				if (c.setVersion(oi, myVersion) == Chunk.FREEZE_VERSION)
+				{
+					sizeBounds.undoPut(false);
+					frozen++;
+					continue;
+				}
+
+				ancor = c.linkRunItem(oi, ancor);
+			}
+
+			// delete operation from thread array
+			c.publishPut(Chunk.NONE);
+
+			// if all items are frozen - compact the chunk and retry
+			if (frozen == count) {
+				c = rebalance(c);
+				continue;
+			}
+
+			// otherwise put the frozen ones one by one
+			for (int oi = first, i = from; (frozen > 0) && (oi <= last); oi += Chunk.ORDER_SIZE, ++i)
+			{
+				if (c.getVersion(oi) == Chunk.FREEZE_VERSION)
+				{
+					doPutInt(keys[i], vals[i], false);
+					frozen--;
+				}
+			}
+
+			rebalanceIfNeeded(c, count);
+
+			return from + count;
+		}
+	}
+
+	/** @return index of the first key in keys[from..to) not smaller than key (keys are sorted) */
+	private static int runEnd(int[] keys, int from, int to, int key)
+	{
+		int idx = Arrays.binarySearch(keys, from, to, key);
+		return (idx >= 0) ? idx : -idx - 1;
+	}
+
+	/** copies the keys and values in [min,max] into keysOut and valsOut
+	 * @return number of items copied */
+	public int scanInt(int min, int max, int[] keysOut, int[] valsOut)
+	{
+		enterOperation();
+		try
+		{
+			return doScanInt(min, max, keysOut, valsOut);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	private int doScanInt(int min, int max, int[] keysOut, int[] valsOut)
+	{
+		long myVer = newVersion(min, max);
+
+		// find chunk matching min key, to start iterator there
+		Chunk<Integer,Integer> c = locateChunkInt(min);
+		int[] pending = pendingPutsBuffer();
+
+		int itemsCount = 0;
+		while ((c != null) && (c.minKey <= max))
+		{
+			// help pending put ops set a version - and get them sorted by key for the merge in copyRangeInt
+			int pendingCount = c.helpPutInScanInt(myVer, version, min, max, pending);
+			itemsCount += ((ChunkIntInt) c).copyRangeInt(keysOut, valsOut, itemsCount, myVer, min, max, pending, pendingCount);
+			c = c.next.getReference();
+		}
+
+		// remove scan from scan array
+		publishScan(null);
+
+		return itemsCount;
+	}
+
+	/** int-key counterpart of locateChunk */
+	private Chunk<Integer,Integer> locateChunkInt(int key)
+	{
+		Chunk<Integer,Integer> c = getFinger();
+		if ((c != null) && (c.minKey <= key))
+		{
+			Chunk<Integer,Integer> next = c.next.getReference();
+			if ((next == null) || (next.minKey > key))
+				return c;
+		}
+
+		c = iterateChunksInt(intIndex.floorInt(key), key);
+		setFinger(c);
+		return c;
+	}
+
+	/** int-key counterpart of iterateChunks */
+	private Chunk<Integer,Integer> iterateChunksInt(Chunk<Integer,Integer> c, int key)
+	{
+		Chunk<Integer,Integer> next = c.next.getReference();
+
+		while ((next != null) && (next.minKey <= key))
+		{
+			c = next;
+			next = c.next.getReference();
+		}
+
+		return c;
+	}
+}
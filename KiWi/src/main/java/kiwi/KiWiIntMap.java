@@ -0,0 +1,106 @@
+package kiwi;
+
+/**
+ * Primitive int-to-int map facade over KiWiInt.
+ * Unlike KiWiMap, keys and values are never boxed inside the chunks.
+ */
+public class KiWiIntMap
+{
+	/***************	Members				***************/
+	public static boolean			SupportScan = true;
+	public static int				RebalanceSize = 2;
+	public static int				LearnedIndexEpsilon = 0;	// > 0 to locate chunks by a learned model, see IntChunkIndex
+	private LowerUpperBounds sizeBounds; // Bounds the map size from below and from above.
+	private final boolean			offHeap;
+
+	public KiWiInt					kiwi;
+
+	/***************	Constructors		***************/
+	public KiWiIntMap()
+	{
+		this(false);
+	}
+
+	public KiWiIntMap(boolean calculateSizeBounds)
+	{
+		this(calculateSizeBounds, false);
+	}
+
+	/** @param offHeap keep chunks in native memory - close() must then be called to free it */
+	public KiWiIntMap(boolean calculateSizeBounds, boolean offHeap)
+	{
+		sizeBounds = new LowerUpperBounds(!calculateSizeBounds);
+		this.offHeap = offHeap;
+		KiWi.RebalanceSize = RebalanceSize;
+		this.kiwi = newKiWi();
+	}
+
+	private KiWiInt newKiWi()
+	{
+		ChunkIntInt head = offHeap ? new ChunkOffHeap(false, sizeBounds) : new ChunkIntInt(false, sizeBounds);
+		return new KiWiInt(head, SupportScan, sizeBounds, new IntChunkIndex<Integer>(LearnedIndexEpsilon));
+	}
+
+	/***************	Methods				***************/
+
+	/** @return the value of key, or 'missing' if key is absent */
+	public int get(int key, int missing)
+	{
+		return kiwi.getInt(key, missing);
+	}
+
+	/** always puts the new value - even if the key is not absent, it is updated */
+	public void put(int key, int val)
+	{
+		kiwi.putInt(key, val, false);
+	}
+
+	/** same as put(keys[i], vals[i]) for each i, in order - keys that go into the same chunk are put together,
+	 * so sorted (or clustered) keys are put faster
+	 * @throws IllegalArgumentException if keys and vals differ in length */
+	public void putBatch(int[] keys, int[] vals)
+	{
+		if (vals.length != keys.length)
+			throw new IllegalArgumentException("putBatch with " + keys.length + " keys and " + vals.length + " values");
+
+		kiwi.putBatch(keys, vals);
+	}
+
+	public void remove(int key)
+	{
+		kiwi.putInt(key, 0, true);
+	}
+
+	/** copies keys and values in range [min,max] (ordered by key) into keysOut and valsOut
+	 * @return number of items copied */
+	public int scan(int min, int max, int[] keysOut, int[] valsOut)
+	{
+		return kiwi.scanInt(min, max, keysOut, valsOut);
+	}
+
+	/** we just create new kiwi - like close(), must not run concurrently with other operations **/
+	public void clear()
+	{
+		KiWiInt old = this.kiwi;
+		sizeBounds = new LowerUpperBounds(sizeBounds.isFake);
+		this.kiwi = newKiWi();
+		old.close();
+	}
+
+	/** frees off-heap memory of the map. must not run concurrently with other operations,
+	 * and the map must not be used afterwards */
+	public void close()
+	{
+		kiwi.close();
+	}
+
+	public int sizeUpperBound()
+	{
+		return kiwi.upperSizeBound();
+	}
+
+	public int sizeLowerBound()
+	{
+		return kiwi.lowerSizeBound();
+	}
+}
@@ -0,0 +1,218 @@
+package kiwi;
+
+import kiwi.ThreadData.LongScanData;
+import kiwi.ThreadData.ScanData;
+import util.Utils;
+
+/**
+ * KiWi over ChunkLong chunks, adding long-to-long operations that do not box keys or values inside the chunks.
+ * The generic (boxed) operations of KiWi remain available and operate on the same data.
+ */
+public class KiWiLong extends KiWi<Long,Long>
+{
+	private final LongChunkIndex<Long> longIndex;	// same as chunkIndex - looked up without boxing the key
+
+	/*************** Constructors ***************/
+	public KiWiLong(ChunkLong head, boolean withScan, LowerUpperBounds sizeBounds)
+	{
+		this(head, withScan, sizeBounds, new LongChunkIndex<Long>());
+	}
+
+	public KiWiLong(ChunkLong head, boolean withScan, LowerUpperBounds sizeBounds, LongChunkIndex<Long> index)
+	{
+		super(head, withScan, sizeBounds, index);
+		this.longIndex = index;
+	}
+
+	/*************** Methods ***************/
+
+	@Override
+	protected ScanData<Long,Long> newScanRecord()
+	{
+		return new LongScanData();
+	}
+
+	/** @return the value of key, or 'missing' if key is absent */
+	public long getLong(long key, long missing)
+	{
+		enterOperation();
+		try
+		{
+			// find chunk matching key
+			ChunkLong c = (ChunkLong) locateChunkLong(key);
+
+			// no item has the key - nor does a put that took effect
+			if (!c.mayContainLong(key))
+				return missing;
+
+			// help concurrent put operations set a version, then find item matching key inside chunk
+			int oi = c.findLong(key, c.helpPutInGetLong(version, key));
+
+			if ((oi == Chunk.NONE) || c.isRemoved(oi))
+				return missing;
+
+			return c.readLong(oi);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	/** puts val for key, or removes key if 'remove' is set (val is then ignored). same algorithm as KiWi.put */
+	public void putLong(long key, long val, boolean remove)
+	{
+		enterOperation();
+		try
+		{
+			doPutLong(key, val, remove);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	private void doPutLong(long key, long val, boolean remove)
+	{
+		// find chunk matching key
+		Chunk<Long,Long> c = locateChunkLong(key);
+
+		// repeat until put operation is successful
+		while (true) {
+			c = iterateChunksLong(c, key);
+
+			// if chunk is infant chunk (has a parent), we can't add to it
+			// we need to help finish compact for its parent first, then proceed
+			{
+				Chunk<Long,Long> parent = c.creator;
+				if (parent != null) {
+					if (rebalance(parent) == null)
+						return;
+				}
+			}
+
+			// allocate space in chunk for key & value
+			int oi = ((ChunkLong) c).allocateLong(key, val, remove);
+
+			// if failed - chunk is full, compact it & retry
+			if (oi < 0) {
+				c = rebalance(c);
+				if (c == null)
+					return;
+				continue;
+			}
+
+			sizeBounds.startInsert(remove);
+			if (withScan) {
+				// publishing BEFORE setting the version so that other operations can see our value and help
+				c.publishPut(oi);
+
+				if (c.isFreezed()) {
+					// if succeeded to freeze item -- it is not accessible, need to reinsert it in rebalanced chunk
+					if (c.tryFreezeItem(oi)) {
+						sizeBounds.undoPut(remove);
+						Utils.randomDelay(delayForLinearizabilityTesting, 1);
+						c.publishPut(Chunk.NONE);
+						c = rebalance(c);
+
+						continue;
+					}
+				}
+			}
+			Utils.randomDelay(delayForLinearizabilityTesting, 10);
+			long myVersion = c.setVersion(oi, this.version.get());
+
+			Utils.randomDelay(delayForLinearizabilityTesting, 20);
+			// if chunk is frozen, clear published data, compact it and retry
+			if (myVersion == Chunk.FREEZE_VERSION) {
+				sizeBounds.undoPut(remove);
+				c.publishPut(Chunk.NONE);
+				Utils.randomDelay(delayForLinearizabilityTesting, 1);
+				c = rebalance(c);
+				continue;
+			}
+
+			((ChunkLong) c).addToListLong(oi, key);
+			Utils.randomDelay(delayForLinearizabilityTesting, 1);
+			// delete operation from thread array - and done
+			c.publishPut(Chunk.NONE);
+
+			rebalanceIfNeeded(c);
+
+			break;
+		}
+	}
+
+	/** copies the keys and values in [min,max] into keysOut and valsOut
+	 * @return number of items copied */
+	public int scanLong(long min, long max, long[] keysOut, long[] valsOut)
+	{
+		enterOperation();
+		try
+		{
+			return doScanLong(min, max, keysOut, valsOut);
+		}
+		finally
+		{
+			exitOperation();
+		}
+	}
+
+	private int doScanLong(long min, long max, long[] keysOut, long[] valsOut)
+	{
+		// the scan's range is kept unboxed in the thread's record
+		LongScanData sd = (LongScanData) scanRecord();
+		sd.resetLong(min, max);
+		long myVer = newVersion(sd);
+
+		// find chunk matching min key, to start iterator there
+		Chunk<Long,Long> c = locateChunkLong(min);
+		int[] pending = pendingPutsBuffer();
+
+		int itemsCount = 0;
+		while ((c != null) && (c.minKey <= max))
+		{
+			// help pending put ops set a version - and get them sorted by key for the merge in copyRangeLong
+			ChunkLong cl = (ChunkLong) c;
+			int pendingCount = cl.helpPutInScanLong(myVer, version, min, max, pending);
+			itemsCount += cl.copyRangeLong(keysOut, valsOut, itemsCount, myVer, min, max, pending, pendingCount);
+			c = c.next.getReference();
+		}
+
+		// remove scan from scan array
+		publishScan(null);
+
+		return itemsCount;
+	}
+
+	/** long-key counterpart of locateChunk */
+	private Chunk<Long,Long> locateChunkLong(long key)
+	{
+		Chunk<Long,Long> c = getFinger();
+		if ((c != null) && (c.minKey <= key))
+		{
+			Chunk<Long,Long> next = c.next.getReference();
+			if ((next == null) || (next.minKey > key))
+				return c;
+		}
+
+		c = iterateChunksLong(longIndex.floorLong(key), key);
+		setFinger(c);
+		return c;
+	}
+
+	/** long-key counterpart of iterateChunks */
+	private Chunk<Long,Long> iterateChunksLong(Chunk<Long,Long> c, long key)
+	{
+		Chunk<Long,Long> next = c.next.getReference();
+
+		while ((next != null) && (next.minKey <= key))
+		{
+			c = next;
+			next = c.next.getReference();
+		}
+
+		return c;
+	}
+}
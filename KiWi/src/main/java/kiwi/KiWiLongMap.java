@@ -0,0 +1,76 @@
+package kiwi;
+
+/**
+ * Primitive long-to-long map facade over KiWiLong.
+ * Like KiWiIntMap, keys and values are never boxed inside the chunks.
+ */
+public class KiWiLongMap
+{
+	/***************	Members				***************/
+	public static boolean			SupportScan = true;
+	public static int				RebalanceSize = 2;
+	private LowerUpperBounds sizeBounds; // Bounds the map size from below and from above.
+
+	public KiWiLong					kiwi;
+
+	/***************	Constructors		***************/
+	public KiWiLongMap()
+	{
+		this(false);
+	}
+
+	public KiWiLongMap(boolean calculateSizeBounds)
+	{
+		sizeBounds = new LowerUpperBounds(!calculateSizeBounds);
+		KiWi.RebalanceSize = RebalanceSize;
+		this.kiwi = newKiWi();
+	}
+
+	private KiWiLong newKiWi()
+	{
+		return new KiWiLong(new ChunkLong(false, sizeBounds), SupportScan, sizeBounds, new LongChunkIndex<Long>());
+	}
+
+	/***************	Methods				***************/
+
+	/** @return the value of key, or 'missing' if key is absent */
+	public long get(long key, long missing)
+	{
+		return kiwi.getLong(key, missing);
+	}
+
+	/** always puts the new value - even if the key is not absent, it is updated */
+	public void put(long key, long val)
+	{
+		kiwi.putLong(key, val, false);
+	}
+
+	public void remove(long key)
+	{
+		kiwi.putLong(key, 0, true);
+	}
+
+	/** copies keys and values in range [min,max] (ordered by key) into keysOut and valsOut
+	 * @return number of items copied */
+	public int scan(long min, long max, long[] keysOut, long[] valsOut)
+	{
+		return kiwi.scanLong(min, max, keysOut, valsOut);
+	}
+
+	/** Clear is not really an option (can be implemented non-safe inside KiWi) - we just create new kiwi **/
+	public void clear()
+	{
+		sizeBounds = new LowerUpperBounds(sizeBounds.isFake);
+		this.kiwi = newKiWi();
+	}
+
+	public int sizeUpperBound()
+	{
+		return kiwi.upperSizeBound();
+	}
+
+	public int sizeLowerBound()
+	{
+		return kiwi.lowerSizeBound();
+	}
+}
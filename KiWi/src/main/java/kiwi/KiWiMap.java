@@ -32,7 +32,8 @@ public class KiWiMap implements CompositionalMap<Integer,Integer>
         sizeBounds = new LowerUpperBounds(!calculateSizeBounds);
     	ChunkInt.initPool(logOperations);
         KiWi.RebalanceSize = RebalanceSize;
-    	this.kiwi = new KiWi<>(new ChunkInt(logOperations, sizeBounds), SupportScan, sizeBounds);
+    	this.kiwi = new KiWi<>(new ChunkInt(logOperations, sizeBounds), SupportScan, sizeBounds,
+    		new IntChunkIndex<Integer>());
     	if(logOperations) {
             historyLogger = new HistoryLogger();
         }else{
@@ -151,7 +152,8 @@ public class KiWiMap implements CompositionalMap<Integer,Integer>
     	//this.kiwi.debugPrint();
     	ChunkInt.initPool(historyLogger != null);
     	sizeBounds = new LowerUpperBounds(sizeBounds.isFake);
-    	this.kiwi = new KiWi<>(new ChunkInt(historyLogger != null, sizeBounds), SupportScan, sizeBounds);
+    	this.kiwi = new KiWi<>(new ChunkInt(historyLogger != null, sizeBounds), SupportScan, sizeBounds,
+    		new IntChunkIndex<Integer>());
     }
 
     /** Not implemented - can scan all & return keys **/
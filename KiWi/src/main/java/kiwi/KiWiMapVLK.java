@@ -14,12 +14,19 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
 	/***************	Constants			***************/
 	
 	/***************	Members				***************/
+	public static boolean			SupportScan = true;
 	private KiWi<Cell,Cell> kiwi;
     
     /***************	Constructors		***************/
     public KiWiMapVLK()
     {
-    	this.kiwi = new KiWi<>(new ChunkCell(false));
+    	this.kiwi = newKiWi();
+    }
+
+    private KiWi<Cell,Cell> newKiWi()
+    {
+    	LowerUpperBounds sizeBounds = new LowerUpperBounds(true);
+    	return new KiWi<>(new ChunkCell(false, sizeBounds), SupportScan, sizeBounds);
     }
     
     /***************	Methods				***************/
@@ -66,20 +73,34 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     @Override
     public void putAll(Map<? extends Integer, ? extends Integer> map)
     {
-    	throw new NotImplementedException();
+    	for (Integer key : map.keySet())
+    	{
+    		kiwi.put(cellFromInt(key), cellFromInt(map.get(key)));
+    	}
     }
 
     @Override
     public int getRange(Integer[] result, Integer[] resultKeys, boolean addKeys, Integer min, Integer max)
     {
-        throw new NotImplementedException();
+    	Cell[] values = new Cell[result.length];
+    	Cell[] keys = addKeys ? new Cell[result.length] : null;
+
+    	int count = kiwi.scan(values, keys, addKeys, cellFromInt(min), cellFromInt(max));
+    	for (int i = 0; i < count; ++i)
+    	{
+    		result[i] = cellToInt(values[i]);
+    		if (addKeys)
+    			resultKeys[i] = cellToInt(keys[i]);
+    	}
+
+    	return count;
     }
     
     /** Same as get(key) != null **/
     @Override
     public boolean containsKey(Object o)
     {
-    	return get(cellFromInt((Integer)o)) != null;
+    	return get(o) != null;
     }
 
     /** Not supported - can be implemented in a non-safe manner **/
@@ -87,7 +108,7 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     public void clear()
     {
     	//this.kiwi.debugPrint();
-    	this.kiwi = new KiWi<>(new ChunkCell(false));
+    	this.kiwi = newKiWi();
     }
 
     /** Scan all & return keys **/
@@ -123,7 +144,8 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     	byte[] b = new byte[4];
     	
     	// write int data as bytes into data-array
-		b[0] = (byte) (n >>> 24);
+		// sign bit is flipped so that the (unsigned) byte order of cells matches the order of ints
+		b[0] = (byte) ((n >>> 24) ^ 0x80);
 		b[1] = (byte) (n >>> 16);
 		b[2] = (byte) (n >>> 8);
 		b[3] = (byte) (n.intValue());
@@ -138,7 +160,7 @@ public class KiWiMapVLK implements CompositionalMap<Integer,Integer>
     	byte[] b = c.getBytes();
     	int off = c.getOffset();
     	
-    	int n = b[off+0] << 24 | (b[off+1] & 0xFF) << 16 |
+    	int n = (b[off+0] ^ 0x80) << 24 | (b[off+1] & 0xFF) << 16 |
     		(b[off+2] & 0xFF) << 8 | (b[off+3] & 0xFF);
     	
     	return n;
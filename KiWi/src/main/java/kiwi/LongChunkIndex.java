@@ -0,0 +1,196 @@
+package kiwi;
+
+import java.util.List;
+
+/**
+ * Chunk index for long keys: the long counterpart of IntChunkIndex - a copy-on-write sorted long array of
+ * chunk min keys with a parallel chunk array. A lookup is a binary search over a flat long array (no key
+ * boxing, no allocation), while every update copies both arrays under a lock; floorLong should be preferred
+ * by long-key paths. There is no learned model (PiecewiseLinearModel is trained on int keys).
+ */
+public class LongChunkIndex<V> implements ChunkIndex<Long,V>
+{
+	/** immutable state of the index - min keys (ascending) and their chunks */
+	private static final class Snapshot<V>
+	{
+		final long[]			keys;
+		final Chunk<Long,V>[]	chunks;
+
+		Snapshot(long[] keys, Chunk<Long,V>[] chunks)
+		{
+			this.keys = keys;
+			this.chunks = chunks;
+		}
+	}
+
+	/*************** Members ***************/
+	private volatile Snapshot<V> snapshot;
+
+	/*************** Constructors ***************/
+	public LongChunkIndex()
+	{
+		this.snapshot = new Snapshot<>(new long[0], LongChunkIndex.<V>newChunks(0));
+	}
+
+	/** bulk-loads the index with the given chunks, which must be sorted by (distinct) min keys */
+	public LongChunkIndex(List<? extends Chunk<Long,V>> sortedChunks)
+	{
+		int size = sortedChunks.size();
+		long[] keys = new long[size];
+		Chunk<Long,V>[] chunks = newChunks(size);
+
+		for (int i = 0; i < size; ++i)
+		{
+			chunks[i] = sortedChunks.get(i);
+			keys[i] = chunks[i].minKey;
+
+			if ((i > 0) && (keys[i - 1] >= keys[i]))
+				throw new IllegalArgumentException("chunks are not sorted by min key");
+		}
+
+		this.snapshot = new Snapshot<>(keys, chunks);
+	}
+
+	/*************** Methods ***************/
+
+	/** primitive-key counterpart of floor */
+	public Chunk<Long,V> floorLong(long key)
+	{
+		Snapshot<V> s = snapshot;
+		int pos = floorPosition(s.keys, key);
+		return (pos < 0) ? null : s.chunks[pos];
+	}
+
+	/** primitive-key counterpart of lower */
+	public Chunk<Long,V> lowerLong(long key)
+	{
+		if (key == Long.MIN_VALUE)
+			return null;
+
+		return floorLong(key - 1);
+	}
+
+	@Override
+	public Chunk<Long,V> floor(Long key)
+	{
+		return floorLong(key);
+	}
+
+	@Override
+	public Chunk<Long,V> lower(Long key)
+	{
+		return lowerLong(key);
+	}
+
+	@Override
+	public Chunk<Long,V> first()
+	{
+		Snapshot<V> s = snapshot;
+		return (s.chunks.length == 0) ? null : s.chunks[0];
+	}
+
+	/** number of indexed chunks */
+	public int size()
+	{
+		return snapshot.keys.length;
+	}
+
+	@Override
+	public synchronized boolean putIfAbsent(Chunk<Long,V> chunk)
+	{
+		Snapshot<V> s = snapshot;
+		long key = chunk.minKey;
+		int pos = floorPosition(s.keys, key);
+
+		if ((pos >= 0) && (s.keys[pos] == key))
+			return false;
+
+		// insert after pos
+		int size = s.keys.length;
+		long[] keys = new long[size + 1];
+		Chunk<Long,V>[] chunks = newChunks(size + 1);
+
+		System.arraycopy(s.keys, 0, keys, 0, pos + 1);
+		System.arraycopy(s.chunks, 0, chunks, 0, pos + 1);
+		keys[pos + 1] = key;
+		chunks[pos + 1] = chunk;
+		System.arraycopy(s.keys, pos + 1, keys, pos + 2, size - pos - 1);
+		System.arraycopy(s.chunks, pos + 1, chunks, pos + 2, size - pos - 1);
+
+		snapshot = new Snapshot<>(keys, chunks);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean replace(Chunk<Long,V> oldChunk, Chunk<Long,V> newChunk)
+	{
+		Snapshot<V> s = snapshot;
+		int pos = position(s, oldChunk);
+		if (pos < 0)
+			return false;
+
+		Chunk<Long,V>[] chunks = s.chunks.clone();
+		chunks[pos] = newChunk;
+
+		// keys are unchanged - the new chunk replaces the old one under the same min key
+		snapshot = new Snapshot<>(s.keys, chunks);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean remove(Chunk<Long,V> chunk)
+	{
+		Snapshot<V> s = snapshot;
+		int pos = position(s, chunk);
+		if (pos < 0)
+			return false;
+
+		int size = s.keys.length;
+		long[] keys = new long[size - 1];
+		Chunk<Long,V>[] chunks = newChunks(size - 1);
+
+		System.arraycopy(s.keys, 0, keys, 0, pos);
+		System.arraycopy(s.chunks, 0, chunks, 0, pos);
+		System.arraycopy(s.keys, pos + 1, keys, pos, size - pos - 1);
+		System.arraycopy(s.chunks, pos + 1, chunks, pos, size - pos - 1);
+
+		snapshot = new Snapshot<>(keys, chunks);
+		return true;
+	}
+
+	/** @return position of chunk (indexed under its min key) in s, or -1 */
+	private static <V> int position(Snapshot<V> s, Chunk<Long,V> chunk)
+	{
+		long key = chunk.minKey;
+		int pos = floorPosition(s.keys, key);
+
+		if ((pos < 0) || (s.keys[pos] != key) || (s.chunks[pos] != chunk))
+			return -1;
+
+		return pos;
+	}
+
+	/** @return position of the greatest key in keys that is less than or equal to key, or -1 */
+	private static int floorPosition(long[] keys, long key)
+	{
+		int start = 0;
+		int end = keys.length - 1;
+		while (start <= end)
+		{
+			int mid = (start + end) >>> 1;
+
+			if (keys[mid] <= key)
+				start = mid + 1;
+			else
+				end = mid - 1;
+		}
+
+		return end;
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static <V> Chunk<Long,V>[] newChunks(int size)
+	{
+		return new Chunk[size];
+	}
+}
@@ -0,0 +1,75 @@
+package kiwi;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import sun.misc.Unsafe;
+
+/**
+ * long counterpart of SlotArray - a thread array of longs indexed by ThreadRegistry slots, 0 meaning empty.
+ * Same layout: padded segments of doubling sizes, allocated on first use and never moved.
+ * Entries are read and written whole (never torn), so an entry can pack two ints that must be seen together.
+ * An entry may have more words, kept in its padding (see get(slot, word)).
+ */
+public class LongSlotArray
+{
+	private static final int MAX_SEGMENTS = 32;
+
+	/*************** Members ***************/
+	private final AtomicReferenceArray<long[]>	segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+	private final int							padSize;
+
+	/*************** Constructors ***************/
+	public LongSlotArray(int padSize)
+	{
+		this.padSize = padSize;
+	}
+
+	/*************** Methods ***************/
+
+	/** @return the entry of the given slot, or 0 if none was set */
+	public long get(int slot)
+	{
+		return get(slot, 0);
+	}
+
+	/** sets the entry of the given slot (an ordered write - callers fence when needed) **/
+	public void set(int slot, long value)
+	{
+		set(slot, 0, value);
+	}
+
+	/** @return the given word (smaller than the pad size) of the entry of the given slot, or 0 if none was set */
+	public long get(int slot, int word)
+	{
+		int seg = SlotArray.segmentOf(slot);
+		long[] arr = segments.get(seg);
+		if (arr == null)
+			return 0;
+
+		return Chunk.unsafe.getLongVolatile(arr, offset(slot - SlotArray.segmentStart(seg), word));
+	}
+
+	/** sets the given word of the entry of the given slot (an ordered write, so words written one after the
+	 * other are seen in that order) **/
+	public void set(int slot, int word, long value)
+	{
+		int seg = SlotArray.segmentOf(slot);
+		long[] arr = segments.get(seg);
+		if (arr == null)
+		{
+			// nothing to clear in a segment that was never used
+			if (value == 0)
+				return;
+
+			long[] newArr = new long[(KiWi.MAX_THREADS << seg) * (padSize + 1)];
+			arr = segments.compareAndSet(seg, null, newArr) ? newArr : segments.get(seg);
+		}
+
+		Chunk.unsafe.putOrderedLong(arr, offset(slot - SlotArray.segmentStart(seg), word), value);
+	}
+
+	private final long offset(int idx, int word)
+	{
+		return Unsafe.ARRAY_LONG_BASE_OFFSET + (long) (padSize + idx*padSize + word) * Unsafe.ARRAY_LONG_INDEX_SCALE;
+	}
+}
@@ -103,7 +103,7 @@ public class MultiChunkIterator<K extends Comparable<? super K>,V> {
     }
 
 
-    public int getVersion() {
+    public long getVersion() {
         return iterCurrItem.getVersion();
     }
 
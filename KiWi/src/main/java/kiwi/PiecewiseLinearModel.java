@@ -0,0 +1,116 @@
+package kiwi;
+
+import java.util.Arrays;
+
+/**
+ * Piecewise linear approximation of the position of keys in a sorted int array (a learned index model).
+ * Trained greedily in one pass (shrinking cone): a segment is extended as long as a single line predicts
+ * the position of all its keys within +-epsilon. The prediction for any key (indexed or not) is thus
+ * within epsilon + 1 of the position of its floor in the trained array.
+ */
+public class PiecewiseLinearModel
+{
+	/*************** Members ***************/
+	private final int		epsilon;
+	private final int[]		segmentKeys;	// first key of each segment, ascending
+	private final int[]		segmentPositions;	// position of segment's first key
+	private final double[]	segmentSlopes;
+	private final int		size;			// # of keys the model was trained on
+
+	/*************** Constructors ***************/
+	/** trains a model over the first 'size' keys of sorted (distinct, ascending) keys */
+	public PiecewiseLinearModel(int[] keys, int size, int epsilon)
+	{
+		this.epsilon = epsilon;
+		this.size = size;
+
+		int[] segKeys = new int[Math.max(size, 1)];
+		int[] segPositions = new int[Math.max(size, 1)];
+		double[] segSlopes = new double[Math.max(size, 1)];
+		int segments = 0;
+
+		int start = 0;
+		double slopeLow = 0;
+		double slopeHigh = Double.POSITIVE_INFINITY;
+
+		for (int i = 1; i <= size; ++i)
+		{
+			if (i < size)
+			{
+				// narrow the cone of slopes predicting all keys of the segment within epsilon
+				double dx = (double) keys[i] - keys[start];
+				double low = Math.max(slopeLow, (i - start - epsilon) / dx);
+				double high = Math.min(slopeHigh, (i - start + epsilon) / dx);
+
+				if (low <= high)
+				{
+					slopeLow = low;
+					slopeHigh = high;
+					continue;
+				}
+			}
+
+			// close the segment [start, i)
+			segKeys[segments] = keys[start];
+			segPositions[segments] = start;
+			segSlopes[segments] = (slopeHigh == Double.POSITIVE_INFINITY) ? 0 : (slopeLow + slopeHigh) / 2;
+			segments++;
+
+			start = i;
+			slopeLow = 0;
+			slopeHigh = Double.POSITIVE_INFINITY;
+		}
+
+		this.segmentKeys = Arrays.copyOf(segKeys, segments);
+		this.segmentPositions = Arrays.copyOf(segPositions, segments);
+		this.segmentSlopes = Arrays.copyOf(segSlopes, segments);
+	}
+
+	/*************** Methods ***************/
+
+	/** @return predicted position of the floor of key in the trained array - may be out of its bounds */
+	public int predict(int key)
+	{
+		// find segment - few segments for smooth key spaces, so this search stays within a cache line or two
+		int start = 0;
+		int end = segmentKeys.length - 1;
+		while (start <= end)
+		{
+			int mid = (start + end) >>> 1;
+			if (segmentKeys[mid] <= key)
+				start = mid + 1;
+			else
+				end = mid - 1;
+		}
+
+		if (end < 0)
+			return -1;
+
+		// keys between segments belong to the last position of the segment
+		int predicted = segmentPositions[end] + (int) (segmentSlopes[end] * ((double) key - segmentKeys[end]));
+		int last = (end + 1 < segmentKeys.length) ? segmentPositions[end + 1] - 1 : size - 1;
+
+		return Math.min(predicted, last);
+	}
+
+	/** @return max distance of a prediction from the floor position in the trained array */
+	public int getErrorBound()
+	{
+		return epsilon + 1;
+	}
+
+	public int getEpsilon()
+	{
+		return epsilon;
+	}
+
+	public int getSegmentCount()
+	{
+		return segmentKeys.length;
+	}
+
+	public int getTrainedSize()
+	{
+		return size;
+	}
+}
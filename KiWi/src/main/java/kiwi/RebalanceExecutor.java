@@ -0,0 +1,181 @@
+package kiwi;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebalances chunks on a small pool of dedicated threads, so puts that find their chunk getting full
+ * (see KiWi.shouldRebalance) do not pay for freezing, compaction and index updates themselves.
+ * A chunk is queued at most once at a time. Requests beyond the queue capacity are dropped -
+ * the chunk is then rebalanced inline once it is actually full, as without the executor.
+ */
+public class RebalanceExecutor<K extends Comparable<? super K>,V>
+{
+	public static int QueueCapacity = 1024;
+	private static final long KEEP_ALIVE_MILLIS = 1000;	// idle threads exit, so a dropped map leaves none behind
+	private static final AtomicInteger poolNumber = new AtomicInteger(0);
+
+	/*************** Members ***************/
+	private final KiWi<K,V>						kiwi;
+	private final ThreadPoolExecutor			executor;
+	private final Set<Chunk<K,V>>				queued = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong					submitted = new AtomicLong(0);
+	private final AtomicLong					dropped = new AtomicLong(0);
+	private final AtomicLong					completed = new AtomicLong(0);
+	private final AtomicLong					totalWaitNanos = new AtomicLong(0);	// from request to start
+	private final AtomicLong					totalRunNanos = new AtomicLong(0);	// rebalance itself
+	private final AtomicLong					maxRunNanos = new AtomicLong(0);
+
+	/*************** Constructors ***************/
+	public RebalanceExecutor(KiWi<K,V> kiwi, int numThreads)
+	{
+		this.kiwi = kiwi;
+
+		final int pool = poolNumber.incrementAndGet();
+		ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "kiwi-rebalance-" + pool + "-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		this.executor = new ThreadPoolExecutor(numThreads, numThreads, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(QueueCapacity), factory);
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/*************** Methods ***************/
+
+	/** queues chunk for rebalance, unless it is already queued
+	 * @return false if the request was dropped (already queued, queue full or shut down) */
+	public boolean submit(final Chunk<K,V> chunk)
+	{
+		if (!queued.add(chunk))
+			return false;
+
+		final long requestTime = System.nanoTime();
+		try
+		{
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					rebalance(chunk, requestTime);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			queued.remove(chunk);
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		submitted.incrementAndGet();
+		return true;
+	}
+
+	private void rebalance(Chunk<K,V> chunk, long requestTime)
+	{
+		long start = System.nanoTime();
+		queued.remove(chunk);
+
+		try
+		{
+			// another thread may have started (or completed) rebalancing it meanwhile
+			if (chunk.isEngaged(null))
+				kiwi.rebalanceInBackground(chunk);
+		}
+		finally
+		{
+			long end = System.nanoTime();
+			totalWaitNanos.addAndGet(start - requestTime);
+			totalRunNanos.addAndGet(end - start);
+			updateMax(maxRunNanos, end - start);
+			completed.incrementAndGet();
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value)
+	{
+		long curr;
+		while ((value > (curr = max.get())) && !max.compareAndSet(curr, value));
+	}
+
+	/** discards queued requests and waits for running rebalances to complete */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*************** Metrics ***************/
+
+	/** @return # of chunks waiting to be rebalanced */
+	public int getQueueDepth()
+	{
+		return executor.getQueue().size();
+	}
+
+	public long getSubmittedCount()
+	{
+		return submitted.get();
+	}
+
+	/** @return # of requests dropped since the queue was full */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public long getCompletedCount()
+	{
+		return completed.get();
+	}
+
+	/** @return mean time (ns) a request waited in queue */
+	public double getMeanWaitNanos()
+	{
+		long n = completed.get();
+		return (n == 0) ? 0 : (double) totalWaitNanos.get() / n;
+	}
+
+	/** @return mean time (ns) of a background rebalance */
+	public double getMeanRebalanceNanos()
+	{
+		long n = completed.get();
+		return (n == 0) ? 0 : (double) totalRunNanos.get() / n;
+	}
+
+	/** @return longest time (ns) of a background rebalance */
+	public long getMaxRebalanceNanos()
+	{
+		return maxRunNanos.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("queue=%d submitted=%d dropped=%d completed=%d meanWait=%.0fns meanRebalance=%.0fns maxRebalance=%dns",
+				getQueueDepth(), getSubmittedCount(), getDroppedCount(), getCompletedCount(),
+				getMeanWaitNanos(), getMeanRebalanceNanos(), getMaxRebalanceNanos());
+	}
+}
@@ -2,7 +2,9 @@ package kiwi;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Created by dbasin on 11/24/15.
@@ -10,14 +12,97 @@ import java.util.concurrent.atomic.AtomicReference;
 public class Rebalancer<K extends Comparable<? super K>,V> {
 
     public static double MAX_AFTER_MERGE_PART= 0.5;
+    public static int CompactionPartSize = 4;   // # of engaged chunks compacted as one part - longer ranges are split
+    public static int CompactionWaitSpins = 256;    // # of times a thread yields to one compacting a part before compacting it too
+
+    // AdaptivePolicy parameters
+    public static int AdaptiveRebalanceSize = 8;    // max # of chunks engaged
+    public static double LookupHopWeight = 0.25;    // cost of a lookup hop relative to copying an item
+    public static double MIN_FILL_PART = 0.375;     // fill of compacted chunks (part of MAX_ITEMS) for write-heavy ranges
+    public static double MAX_FILL_PART = 1.0;       // fill of compacted chunks for read-mostly ranges
+    public static double MIN_HEADROOM_PART = 0.25;  // room left for puts in compacted chunks of read-mostly ranges
+    public static double MAX_HEADROOM_PART = 0.5;   // room left for puts in compacted chunks of write-heavy ranges
+    public static double PACK_MAX_CHURN = 0.1;      // max churn of ranges whose compacted chunks are packed
+
+    /********** Policy selection *******************/
+
+    /***
+     * Creates the policy each thread engaging chunks for a rebalancer consults.
+     * Set RebalancePolicy to one of the built-in factories or to a custom one.
+     */
+    public interface PolicyFactory
+    {
+        <K extends Comparable<? super K>,V> Rebalancer<K,V>.Policy createPolicy(Rebalancer<K,V> rebalancer, Chunk<K,V> startChunk);
+    }
+
+    /** engages neighbours while it reduces the # of chunks, up to KiWi.RebalanceSize chunks */
+    public static final PolicyFactory FixedPolicy = new PolicyFactory() {
+        @Override
+        public <K extends Comparable<? super K>,V> Rebalancer<K,V>.Policy createPolicy(Rebalancer<K,V> rebalancer, Chunk<K,V> startChunk) {
+            return rebalancer.new PolicyImpl(startChunk);
+        }
+    };
+
+    /** weighs compaction copying against the lookup work and space it saves (see AdaptivePolicy) */
+    public static final PolicyFactory AdaptivePolicy = new PolicyFactory() {
+        @Override
+        public <K extends Comparable<? super K>,V> Rebalancer<K,V>.Policy createPolicy(Rebalancer<K,V> rebalancer, Chunk<K,V> startChunk) {
+            return rebalancer.new AdaptivePolicy(startChunk);
+        }
+    };
+
+    public static PolicyFactory RebalancePolicy = FixedPolicy;
 
     /********** Policy *******************/
-    abstract class Policy
+    public abstract class Policy
     {
         abstract public Chunk<K,V> findNextCandidate();
-        abstract void updateRangeView();
-        abstract Chunk<K,V> getFirstChunkInRange();
-        abstract Chunk<K,V > getLastChunkInRange();
+        abstract public void updateRangeView();
+        abstract public Chunk<K,V> getFirstChunkInRange();
+        abstract public Chunk<K,V > getLastChunkInRange();
+
+        /***
+         *
+         * @return # of items to copy into each compacted chunk before starting the next one, i.e., where the range is split
+         */
+        public int getCompactionFill()
+        {
+            return Chunk.MAX_ITEMS/2;
+        }
+
+        /***
+         *
+         * @return capacity of each compacted chunk - must leave room for puts beyond getCompactionFill()
+         */
+        public int getCompactionCapacity()
+        {
+            return Chunk.MAX_ITEMS;
+        }
+
+        /***
+         *
+         * @return true to switch the compacted chunks to the read-optimized packed layout (see Chunk.pack)
+         */
+        public boolean packCompacted()
+        {
+            return KiWi.PackCompactedChunks;
+        }
+
+        protected Chunk<K,V> getNext(Chunk<K,V> chunk)
+        {
+            return chunkIterator.getNext(chunk);
+        }
+
+        protected Chunk<K,V> getPrev(Chunk<K,V> chunk)
+        {
+            return chunkIterator.getPrev(chunk);
+        }
+
+        /** @return true if chunk is engaged with the rebalancer of this policy */
+        protected boolean isEngagedHere(Chunk<K,V> chunk)
+        {
+            return chunk.isEngaged(Rebalancer.this);
+        }
     }
 
     class PolicyImpl extends Policy{
@@ -25,10 +110,10 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
 
 
 
-        private int chunksInRange;
-        private int itemsInRange;
+        int chunksInRange;
+        int itemsInRange;
 
-        private int maxAfterMergeItems;
+        int maxAfterMergeItems;
 
 
         public Chunk<K,V> first;
@@ -49,7 +134,7 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
          * @param chunk candidate chunk for range extension
          * @return true if not engaged and not null
          */
-        private boolean isCandidate(Chunk<K,V> chunk)
+        boolean isCandidate(Chunk<K,V> chunk)
         {
             // do not take chunks that are engaged with another rebalancer or infant
             if(chunk == null || !chunk.isEngaged(null) || chunk.isInfant()) return false;
@@ -123,7 +208,22 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
             return last;
         }
 
-        private void addToCounters(Chunk<K,V> chunk)
+        /***
+         *
+         * @return capacity of the compacted chunks, sized by the range: the room for puts a chunk filled to
+         * getCompactionFill() has, beyond the items of the range if they fit in a single chunk - so a small range
+         * does not take a full-size chunk. always above getCompactionFill(), which the compactor fills up to
+         */
+        @Override
+        public int getCompactionCapacity()
+        {
+            int fill = getCompactionFill();
+            int room = Chunk.MAX_ITEMS - fill;
+
+            return Math.max(fill + 1, Math.min(fill, itemsInRange) + room);
+        }
+
+        void addToCounters(Chunk<K,V> chunk)
         {
             itemsInRange += chunk.getStatistics().getCompactedCount();
             chunksInRange++;
@@ -147,29 +247,199 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
                  Chunk<K,V> prev = Rebalancer.this.chunkIterator.getPrev(first);
                  if(prev == null || !prev.isEngaged(Rebalancer.this)) break;
                  // double check here, after we know that prev is engaged, thus cannot be updated
-                 if(prev.next.getReference() == first) {
-                     first = prev;
-                     addToCounters(first);
-                 }
+                 if(prev.next.getReference() != first) break;
+
+                 first = prev;
+                 addToCounters(first);
              }
         }
     }
 
+    /***
+     * Engages a neighbour when compacting it pays off, by a cost model over the live chunk statistics:
+     * the cost is copying the neighbour (its filled items), the gain is the lookup work on its unsorted tail that
+     * sorting saves (lookup hops since it was created) plus its items compaction drops (duplicates and removals),
+     * which would otherwise fill it and force its own rebalance soon. Merges reducing the # of chunks are taken
+     * as in PolicyImpl. The range is split into compacted chunks sized by its churn - the part of its items
+     * inserted out of order since it was compacted: write-heavy ranges get smaller chunks with more room for puts,
+     * read-mostly ones larger, tightly packed chunks.
+     */
+    class AdaptivePolicy extends PolicyImpl
+    {
+        private long filledInRange;
+        private long unsortedInRange;
+
+        public AdaptivePolicy(Chunk<K,V> startChunk)
+        {
+            super(startChunk);
+            addSignals(startChunk);
+            maxAfterMergeItems = getCompactionFill();
+        }
+
+        @Override
+        public Chunk<K, V> findNextCandidate() {
+
+            updateRangeView();
+
+            if(chunksInRange >= AdaptiveRebalanceSize) return null;
+
+            Chunk<K,V> next = getNext(last);
+            Chunk<K,V> prev = getPrev(first);
+
+            double nextScore = isCandidate(next) ? score(next) : Double.NEGATIVE_INFINITY;
+            double prevScore = isCandidate(prev) ? score(prev) : Double.NEGATIVE_INFINITY;
+
+            if(nextScore < 0 && prevScore < 0) return null;
+            return (prevScore > nextScore) ? prev : next;
+        }
+
+        /***
+         *
+         * @return gain minus cost of engaging the candidate, or +infinity if merging it reduces the # of chunks
+         */
+        private double score(Chunk<K,V> candidate)
+        {
+            Chunk<K,V>.Statistics stats = candidate.getStatistics();
+
+            int totalItems = itemsInRange + stats.getCompactedCount();
+            int chunksAfterMerge = (int)Math.ceil(((double)totalItems)/maxAfterMergeItems);
+            if(chunksAfterMerge < chunksInRange + 1) return Double.POSITIVE_INFINITY;
+
+            double gain = LookupHopWeight * stats.getLookupHops() + stats.getDuplicatesCount() + stats.getRemovedCount();
+            return gain - stats.getFilledCount();
+        }
+
+        @Override
+        void addToCounters(Chunk<K,V> chunk)
+        {
+            super.addToCounters(chunk);
+            addSignals(chunk);
+            maxAfterMergeItems = getCompactionFill();
+        }
+
+        private void addSignals(Chunk<K,V> chunk)
+        {
+            Chunk<K,V>.Statistics stats = chunk.getStatistics();
+            filledInRange += stats.getFilledCount();
+            unsortedInRange += stats.getUnsortedCount();
+        }
+
+        private double churn()
+        {
+            return (filledInRange == 0) ? 0 : Math.min(1.0, (double)unsortedInRange / filledInRange);
+        }
+
+        @Override
+        public int getCompactionFill()
+        {
+            double part = MAX_FILL_PART - (MAX_FILL_PART - MIN_FILL_PART) * churn();
+
+            return Math.max(1, (int)(Chunk.MAX_ITEMS * part));
+        }
+
+        @Override
+        public int getCompactionCapacity()
+        {
+            double headroom = MIN_HEADROOM_PART + (MAX_HEADROOM_PART - MIN_HEADROOM_PART) * churn();
+
+            return getCompactionFill() + Math.max(1, (int)(Chunk.MAX_ITEMS * headroom));
+        }
+
+        @Override
+        public boolean packCompacted()
+        {
+            // read-mostly ranges only - a put switches a packed chunk back, copying it
+            return KiWi.PackCompactedChunks || (churn() <= PACK_MAX_CHURN);
+        }
+    }
+
     Policy createPolicy(Chunk<K,V> startChunk)
     {
-        return new PolicyImpl(startChunk);
+        return RebalancePolicy.createPolicy(this, startChunk);
+    }
+
+    /***
+     * Sizing of the compacted chunks, as decided by the policy.
+     */
+    static final class CompactionSizing
+    {
+        final int       fill;
+        final int       capacity;
+        final boolean   pack;
+
+        CompactionSizing(int fill, int capacity, boolean pack)
+        {
+            this.fill = fill;
+            this.capacity = capacity;
+            this.pack = pack;
+        }
+    }
+
+    /********** Compaction parts *******************/
+
+    /***
+     * Split of an engaged range into consecutive parts that are compacted independently - a range of up to
+     * CompactionPartSize chunks is a single part, and is not planned.
+     * Parts are cut where compacting the whole range starts a compacted chunk (see CompactorImpl.plan), and all
+     * parts are compacted with the scans of the planning thread - so together they make exactly the chunks
+     * compacting the range at once makes.
+     * Threads rebalancing the range claim parts, so they share the compaction work instead of redoing all of it -
+     * a thread finding all parts claimed waits for them a while (CompactionWaitSpins) before compacting them too.
+     */
+    class CompactionParts
+    {
+        final List<Chunk<K,V>>                          chunks;
+        final List<CompactorImpl.Cut>                   from;   // cut of the first compacted chunk of each part
+        final List<CompactorImpl.Cut>                   to;     // cut following the part
+        final ScanIndex<K>                              scanIndex;
+        final AtomicReferenceArray<List<Chunk<K,V>>>    results;
+        final AtomicInteger                             nextToClaim = new AtomicInteger(0);
+
+        CompactionParts(List<Chunk<K,V>> engaged, ScanIndex<K> scanIndex)
+        {
+            this.chunks = new ArrayList<>(engaged);
+            this.scanIndex = scanIndex;
+
+            int numParts = (chunks.size() + CompactionPartSize - 1) / CompactionPartSize;
+            List<CompactorImpl.Cut> cuts = (numParts > 1) ? newCompactor().plan(chunks, scanIndex.copy())
+                    : Collections.<CompactorImpl.Cut>emptyList();
+            int numCompacted = cuts.size() + 1;
+            numParts = Math.min(numCompacted, numParts);
+
+            from = new ArrayList<>(numParts);
+            to = new ArrayList<>(numParts);
+            for(int i = 0; i < numParts; ++i)
+            {
+                // parts of (almost) equal # of compacted chunks
+                int first = (int)((long)numCompacted * i / numParts);
+                int next = (int)((long)numCompacted * (i + 1) / numParts);
+                from.add((first == 0) ? null : cuts.get(first - 1));
+                to.add((next == numCompacted) ? null : cuts.get(next - 1));
+            }
+
+            results = new AtomicReferenceArray<>(numParts);
+        }
+
+        int size()
+        {
+            return results.length();
+        }
     }
 
     /******** Members ************/
 
 
     private AtomicReference<Chunk<K,V>> nextToEngage;
+    private AtomicReference<Chunk<K,V>> firstEngaged;     // leftmost chunk engaged so far - the engaged list starts there
     private Chunk<K,V> startChunk;
     private ChunkIterator<K,V> chunkIterator;
 
     private AtomicReference<List<Chunk<K,V>>> compactedChunks = new AtomicReference<>(null);
     private AtomicReference<List<Chunk<K,V>>> engagedChunks = new AtomicReference<>(null);
     private AtomicBoolean freezedItems = new AtomicBoolean(false);
+    private AtomicBoolean retiredChunks = new AtomicBoolean(false);
+    private AtomicReference<CompactionParts> compactionParts = new AtomicReference<>(null);
+    private AtomicReference<CompactionSizing> compactionSizing = new AtomicReference<>(null);    // set by the first policy to complete engagement
 
 
    /******* Constructors *********/
@@ -179,6 +449,7 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
         if(chunk == null || chunkIterator == null) throw new IllegalArgumentException("Rebalancer construction with null args");
         
         nextToEngage = new AtomicReference<>(chunk);
+        firstEngaged = new AtomicReference<>(chunk);
         this.startChunk = chunk;
         this.chunkIterator = chunkIterator;
     }
@@ -201,6 +472,11 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
             if(!next.isEngaged(this) && next == startChunk)
                 return next.getRebalancer().engageChunks();
 
+            // record a chunk engaged before the range (by the policy going backward) before moving on from it,
+            // so every thread builds the engaged list from it - even if its own policy does not find it
+            if(next.isEngaged(this))
+                updateFirstEngaged(next);
+
             // policy caches last discovered  interval [first, last] of engaged range
             // to get next candidate policy traverses from first backward,
             //  from last forward to find non-engaged chunks connected to the engaged interval
@@ -213,8 +489,10 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
             nextToEngage.compareAndSet(next, candidate);
         }
 
-        p.updateRangeView();
-        List<Chunk<K,V>> engaged = createEngagedList(p.getFirstChunkInRange());
+        // all threads compact with the same sizing, so parts compacted by different threads split alike
+        compactionSizing.compareAndSet(null,
+                new CompactionSizing(p.getCompactionFill(), p.getCompactionCapacity(), p.packCompacted()));
+        List<Chunk<K,V>> engaged = createEngagedList(firstEngaged.get());
 
         if(engagedChunks.compareAndSet(null,engaged) && Parameters.countCompactions) {
             Parameters.compactionsNum.getAndIncrement(); // if CAS fails here - another thread has updated it
@@ -249,15 +527,107 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
     {
         if(isCompacted()) return this;
 
-        Compactor c = new CompactorImpl();
-        List<Chunk<K,V>> compacted =  c.compact(getEngagedChunks(),scanIndex);
+        List<Chunk<K,V>> compacted = compactInParts(getEngagedChunks(), scanIndex);
 
-        // if fail here, another thread succeeded
-        compactedChunks.compareAndSet(null,compacted);
+        // parts are shared by all threads - so nothing to free if another thread succeeded
+        if(compacted != null) compactedChunks.compareAndSet(null,compacted);
 
         return this;
     }
 
+    /***
+     * Compacts the engaged range part by part - first claiming parts no other thread took,
+     * then helping parts other threads are still compacting (the first result of each part is kept).
+     * @return the compacted chunks of all parts, linked into one list, or null if another thread completed compaction
+     */
+    private List<Chunk<K,V>> compactInParts(List<Chunk<K,V>> engaged, ScanIndex<K> scanIndex)
+    {
+        // planning reads the whole range - so a thread finding it planned does not plan again
+        if(compactionParts.get() == null)
+            compactionParts.compareAndSet(null, new CompactionParts(engaged, scanIndex));
+        CompactionParts parts = compactionParts.get();
+        int numParts = parts.size();
+
+        int i;
+        while((i = parts.nextToClaim.getAndIncrement()) < numParts) {
+            if(isCompacted()) return null;
+            compactPart(parts, i);
+        }
+
+        for(i = 0; i < numParts; ++i) {
+            if(isCompacted()) return null;
+            if(!awaitPart(parts, i)) compactPart(parts, i);
+        }
+
+        // link last chunk of each part to the first of the following part.
+        // CAS from null, so a late thread can not override the next pointer of an already published chunk
+        List<Chunk<K,V>> compacted = new LinkedList<>();
+        for(i = 0; i < numParts; ++i) {
+            List<Chunk<K,V>> part = parts.results.get(i);
+            if(!compacted.isEmpty()) {
+                Chunk<K,V> last = compacted.get(compacted.size() - 1);
+                last.next.compareAndSet(null, part.get(0), false, false);
+            }
+            compacted.addAll(part);
+        }
+
+        return compacted;
+    }
+
+    private void compactPart(CompactionParts parts, int i)
+    {
+        List<Chunk<K,V>> part = newCompactor().compact(parts.chunks, parts.from.get(i), parts.to.get(i),
+                parts.scanIndex.copy());
+        prepare(part);
+
+        // if fail here, another thread compacted this part first
+        if(!parts.results.compareAndSet(i, null, part)) releaseAll(part);
+    }
+
+    /** waits a while (CompactionWaitSpins) for another thread to compact part i
+     * @return true if the part is compacted (or the whole range is), false if it still is not */
+    private boolean awaitPart(CompactionParts parts, int i)
+    {
+        for(int spins = 0; spins < CompactionWaitSpins; ++spins) {
+            if((parts.results.get(i) != null) || isCompacted()) return true;
+            Thread.yield();
+        }
+
+        return (parts.results.get(i) != null);
+    }
+
+    private CompactorImpl<K,V> newCompactor()
+    {
+        CompactionSizing sizing = compactionSizing.get();
+        return new CompactorImpl<>(sizing.fill, sizing.capacity);
+    }
+
+    /** switches compacted chunks to the layout for lookups - they are not published yet */
+    private void prepare(List<Chunk<K,V>> compacted)
+    {
+        CompactionSizing sizing = compactionSizing.get();
+        for(Chunk<K,V> chunk : compacted) {
+            if(KiWi.BlockedSearch) chunk.buildSearchIndex();
+            if(sizing.pack) chunk.pack();
+        }
+    }
+
+    private void releaseAll(List<Chunk<K,V>> chunks)
+    {
+        for(Chunk<K,V> chunk : chunks) {
+            chunk.release();
+        }
+    }
+
+    /***
+     * Marks the engaged chunks as retired, i.e., unreachable once the compacted chunks replaced them.
+     * @return true for the single caller that should release them
+     */
+    public boolean markRetired()
+    {
+        return retiredChunks.compareAndSet(false, true);
+    }
+
     public boolean isCompacted()
     {
         return compactedChunks.get() != null;
@@ -288,6 +658,16 @@ public class Rebalancer<K extends Comparable<? super K>,V> {
     }
 
 
+    private void updateFirstEngaged(Chunk<K,V> chunk)
+    {
+        while(true)
+        {
+            Chunk<K,V> first = firstEngaged.get();
+            if(chunk.minKey.compareTo(first.minKey) >= 0) return;
+            if(firstEngaged.compareAndSet(first, chunk)) return;
+        }
+    }
+
     private List<Chunk<K,V>> createEngagedList(Chunk<K, V> firstChunkInRange) {
         Chunk<K,V> current = firstChunkInRange;
         List<Chunk<K,V>> engaged = new LinkedList<>();
@@ -7,101 +7,189 @@ import java.util.Comparator;
 
 /**
  * Created by dbasin on 11/30/15.
+ *
+ * Decides which versions of a key compaction keeps: the newest one, and for each pending scan whose range holds
+ * the key, the newest version the scan sees (i.e., not newer than the scan's version) - exactly those.
+ * Scans are kept as (version, key range) intervals, sorted by version. The versions of the scans holding a key are
+ * gathered once for a run of keys: along with them, the bounds of the key range in which the same scans hold
+ * every key are computed, so later keys are only compared to these bounds.
  */
 public class ScanIndex<K extends Comparable<? super K>> {
-    private int[] scanVersions;
-    private int[] fromKeys;
-    private int[] toKeys;
+    private long[] scanVersions;    // descending
+    private Object[] fromKeys;
+    private Object[] toKeys;
+    private int numOfVersions;
 
-    //private ScanData[] scans;
-    boolean isFirst;
-    boolean isOutOfRange;
+    // distinct versions (descending) of the scans holding every key of the current run - see resolve
+    private long[] covering;
+    private int numCovering;
+    // bounds of the current run - a key is in it if loIncl <= key, loExcl < key, key <= hiIncl and key < hiExcl
+    private K loIncl, loExcl, hiIncl, hiExcl;
+    private boolean resolved;       // false until the first run is resolved
 
-    private int index;
-    private int numOfVersions;
-    private Integer min;
-    private Integer max;
-    private int currKey;
+    private long lastSaved;         // oldest version of the current key kept so far
+    private Chunk<K,?> currChunk;
+    private int currItem;   // order index (in currChunk) of the item which key is currently copied
 
-    public ScanIndex(ArrayList<ScanData> scans, int currVersion, K minKey, K maxKey)
+    public ScanIndex(ArrayList<ScanData> scans, long currVersion, K minKey, K maxKey)
     {
-        //this.scans = scans;
-        this.scanVersions = new int[scans.size()];
-        this.fromKeys = new int[scans.size()];
-        this.toKeys = new int[scans.size()];
+        this.scanVersions = new long[scans.size()];
+        this.fromKeys = new Object[scans.size()];
+        this.toKeys = new Object[scans.size()];
+        this.covering = new long[scans.size()];
 
         this.numOfVersions = 0;
 
-        this.min = (minKey != null) ? (Integer)minKey : Integer.MIN_VALUE;
-        this.max = (maxKey != null) ? (Integer)maxKey : Integer.MAX_VALUE;
-
         //noinspection Since15
         scans.sort(new Comparator<ScanData>() {
             @Override
             public int compare(ScanData o1, ScanData o2) {
-                return o2.version.get() - o1.version.get();
+                return Long.compare(o2.getVersion(), o1.getVersion());
             }
         });
 
-        //for(int i = 0; i < scans.length; ++i)
-        for(ScanData sd: scans)
+        for(ScanData<K,?> sd: scans)
         {
             if(sd == null) continue;
-            if(sd.max.compareTo(min) < 0) continue;
-            if(sd.min.compareTo(max) > 0) continue;
+            if(minKey != null && sd.getMax().compareTo(minKey) < 0) continue;
+            if(maxKey != null && sd.getMin().compareTo(maxKey) > 0) continue;
 
-            scanVersions[numOfVersions] = sd.version.get();
-            fromKeys[numOfVersions] = (int) sd.min;
-            toKeys[numOfVersions] = (int) sd.max;
+            scanVersions[numOfVersions] = sd.getVersion();
+            fromKeys[numOfVersions] = sd.getMin();
+            toKeys[numOfVersions] = sd.getMax();
             numOfVersions++;
         }
 
+        reset(null, Chunk.NONE);
+    }
 
+    /** copies the scans of other - the copy keeps its own position, so the two may be used concurrently */
+    private ScanIndex(ScanIndex<K> other)
+    {
+        this.scanVersions = other.scanVersions;
+        this.fromKeys = other.fromKeys;
+        this.toKeys = other.toKeys;
+        this.numOfVersions = other.numOfVersions;
+        this.covering = new long[other.covering.length];
 
-/*
-        Arrays.sort(scanVersions);
-        int size = Math.min(numOfVersions,scanVersions.length/2);
+        reset(null, Chunk.NONE);
+    }
 
-        // mirror the array
-        for( int i = 0; i < size ; ++i )
-        {
-            int temp = scanVersions[i];
-            scanVersions[i] = scanVersions[scanVersions.length - i - 1];
-            scanVersions[scanVersions.length - i - 1] = temp;
-        }
-*/
-        reset(-1);
+    /** @return an index of the same scans, e.g. for another thread compacting a part of the same range */
+    public ScanIndex<K> copy()
+    {
+        return new ScanIndex<>(this);
     }
 
-    public final void reset(int key)
+    /** starts the versions of the key of item oi in chunk - savedVersion should then be called with the newest
+     * one, which is always kept */
+    public final void reset(Chunk<K,?> chunk, int oi)
     {
-        index = -1;
-        isFirst = true;
-        currKey = key;
+        lastSaved = Long.MAX_VALUE;
+        currChunk = chunk;
+        currItem = oi;
     }
 
     /***
-     *
-     *
+     * Called for the versions of the current key in descending order, after the newest one.
      * @param version -- we assume that version > 0
-     * @return
+     * @return true if some scan holding the current key sees this version: the scan's version is not older than
+     * it, and is older than the last version kept (which the scan would see otherwise)
      */
-    public final boolean shouldKeep(int version) {
+    public final boolean shouldKeep(long version) {
 
         //always save the first provided version.
-        if(isFirst) return true;
-        if(index >= numOfVersions) return false;
+        if(lastSaved == Long.MAX_VALUE) return true;
+        if(numOfVersions == 0) return false;
 
-        if(fromKeys[index] > currKey) return false;
-        if(toKeys[index] < currKey) return false;
+        if(!resolved || !inRun()) resolve();
 
-        return scanVersions[index] >= version;
+        // first (i.e., newest) scan version older than the last kept version
+        int start = 0;
+        int end = numCovering;
+        while (start < end)
+        {
+            int curr = (start + end) >>> 1;
+            if (covering[curr] >= lastSaved)
+                start = curr + 1;
+            else
+                end = curr;
+        }
+
+        return (start < numCovering) && (covering[start] >= version);
+    }
+
+    /** the given version of the current key was kept - scans not older than it see it */
+    public final void savedVersion(long version)
+    {
+        lastSaved = Math.min(lastSaved, version);
+    }
+
+    /** @return true if the current item's key is in the current run */
+    private boolean inRun()
+    {
+        return  (loIncl == null || currChunk.compareKey(currItem, loIncl) >= 0) &&
+                (loExcl == null || currChunk.compareKey(currItem, loExcl) > 0) &&
+                (hiIncl == null || currChunk.compareKey(currItem, hiIncl) <= 0) &&
+                (hiExcl == null || currChunk.compareKey(currItem, hiExcl) < 0);
+    }
 
+    /** gathers the versions of the scans holding the current item's key, and the bounds of the run of keys
+     * held by the same scans: the nearest ends of scan ranges on each side of the key */
+    private void resolve()
+    {
+        numCovering = 0;
+        loIncl = loExcl = hiIncl = hiExcl = null;
+
+        for (int i = 0; i < numOfVersions; ++i)
+        {
+            K from = fromKey(i);
+            K to = toKey(i);
+            boolean holds = true;
+
+            if (currChunk.compareKey(currItem, from) >= 0)
+                loIncl = max(loIncl, from);
+            else
+            {
+                hiExcl = min(hiExcl, from);
+                holds = false;
+            }
+
+            if (currChunk.compareKey(currItem, to) <= 0)
+                hiIncl = min(hiIncl, to);
+            else
+            {
+                loExcl = max(loExcl, to);
+                holds = false;
+            }
+
+            // scans sharing a version need it once
+            if (holds && (numCovering == 0 || covering[numCovering - 1] != scanVersions[i]))
+                covering[numCovering++] = scanVersions[i];
+        }
+
+        resolved = true;
+    }
+
+    private K min(K curr, K key)
+    {
+        return (curr == null || key.compareTo(curr) < 0) ? key : curr;
+    }
+
+    private K max(K curr, K key)
+    {
+        return (curr == null || key.compareTo(curr) > 0) ? key : curr;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K fromKey(int i)
+    {
+        return (K) fromKeys[i];
     }
 
-    public final void savedVersion(int version)
+    @SuppressWarnings("unchecked")
+    private K toKey(int i)
     {
-        isFirst = false;
-        index++;
+        return (K) toKeys[i];
     }
 }
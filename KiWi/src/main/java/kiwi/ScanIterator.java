@@ -10,7 +10,7 @@ import java.util.SortedMap;
 public class ScanIterator<K extends Comparable<? super K>,V> implements Iterator<V>
 {
 	private final K 							maxKey;	// max key (inclusive) for this scan - beyond it the iterator is finished
-	private final int							version;// version for this scan- larger versions are ignored
+	private final long							version;// version for this scan- larger versions are ignored
 	private final SortedMap<K,PutData<K,V>>		items;	// items map - for items that are currently added (from thread-array)
 	private final Iterator<K>					iter;	// iterator over items map keys
 	
@@ -21,7 +21,7 @@ public class ScanIterator<K extends Comparable<? super K>,V> implements Iterator
 	private int									idxChunk; // index of current item in current chunk
 	private V									nextVal;  // next value that should be returned, null if done
 	
-	public ScanIterator(K min, K max, int version, Chunk<K,V> chunk, SortedMap<K,PutData<K,V>> items)
+	public ScanIterator(K min, K max, long version, Chunk<K,V> chunk, SortedMap<K,PutData<K,V>> items)
 	{
 		this.maxKey = max;
 		this.version = version;
@@ -0,0 +1,53 @@
+package kiwi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Default chunk index for any key type, over a ConcurrentSkipListMap.
+ */
+public class SkipListChunkIndex<K extends Comparable<? super K>, V> implements ChunkIndex<K,V>
+{
+	private final ConcurrentSkipListMap<K, Chunk<K,V>> skiplist = new ConcurrentSkipListMap<>();
+
+	@Override
+	public Chunk<K,V> floor(K key)
+	{
+		return value(skiplist.floorEntry(key));
+	}
+
+	@Override
+	public Chunk<K,V> lower(K key)
+	{
+		return value(skiplist.lowerEntry(key));
+	}
+
+	@Override
+	public Chunk<K,V> first()
+	{
+		return value(skiplist.firstEntry());
+	}
+
+	@Override
+	public boolean putIfAbsent(Chunk<K,V> chunk)
+	{
+		return skiplist.putIfAbsent(chunk.minKey, chunk) == null;
+	}
+
+	@Override
+	public boolean replace(Chunk<K,V> oldChunk, Chunk<K,V> newChunk)
+	{
+		return skiplist.replace(oldChunk.minKey, oldChunk, newChunk);
+	}
+
+	@Override
+	public boolean remove(Chunk<K,V> chunk)
+	{
+		return skiplist.remove(chunk.minKey, chunk);
+	}
+
+	private static <K,C> C value(Map.Entry<K,C> entry)
+	{
+		return (entry == null) ? null : entry.getValue();
+	}
+}
@@ -0,0 +1,76 @@
+package kiwi;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread array indexed by ThreadRegistry slots, growing as slots are added.
+ * Slots are kept in segments of doubling sizes (KiWi.MAX_THREADS, 2*KiWi.MAX_THREADS, ...) that are allocated on
+ * first use and never moved, so a publish can not be lost to a concurrent growth.
+ * Entries of different slots are padded apart, to avoid false sharing between publishing threads.
+ */
+public class SlotArray<T>
+{
+	private static final int MAX_SEGMENTS = 32;
+
+	/*************** Members ***************/
+	private final AtomicReferenceArray<Object[]>	segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+	private final int								padSize;
+
+	/*************** Constructors ***************/
+	public SlotArray(int padSize)
+	{
+		this.padSize = padSize;
+	}
+
+	/*************** Methods ***************/
+
+	/** @return the entry of the given slot, or null if none was set */
+	@SuppressWarnings("unchecked")
+	public T get(int slot)
+	{
+		int seg = segmentOf(slot);
+		Object[] arr = segments.get(seg);
+		if (arr == null)
+			return null;
+
+		return (T) arr[pad(slot - segmentStart(seg))];
+	}
+
+	/** sets the entry of the given slot (a plain write - callers fence when needed) **/
+	public void set(int slot, T value)
+	{
+		int seg = segmentOf(slot);
+		Object[] arr = segments.get(seg);
+		if (arr == null)
+		{
+			// nothing to clear in a segment that was never used
+			if (value == null)
+				return;
+
+			Object[] newArr = new Object[(KiWi.MAX_THREADS << seg) * (padSize + 1)];
+			arr = segments.compareAndSet(seg, null, newArr) ? newArr : segments.get(seg);
+		}
+
+		arr[pad(slot - segmentStart(seg))] = value;
+	}
+
+	private final int pad(int idx)
+	{
+		return (padSize + idx*padSize);
+	}
+
+	/** segment s holds slots [MAX_THREADS*(2^s - 1), MAX_THREADS*(2^(s+1) - 1)) */
+	static int segmentOf(int slot)
+	{
+		// the common case, without dividing by MAX_THREADS (which is not a constant)
+		if (slot < KiWi.MAX_THREADS)
+			return 0;
+
+		return 31 - Integer.numberOfLeadingZeros(slot / KiWi.MAX_THREADS + 1);
+	}
+
+	static int segmentStart(int seg)
+	{
+		return KiWi.MAX_THREADS * ((1 << seg) - 1);
+	}
+}
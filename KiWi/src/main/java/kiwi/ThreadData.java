@@ -1,25 +1,121 @@
 package kiwi;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class ThreadData
 {
-	/** Thread data class for Scan operations **/
+	/** Thread data class for Scan operations.
+	 * a thread reuses its record for all its scans on a map, so the state tells the scans apart: while a scan has
+	 * no version it is the negated sequence number of the scan, and then its version. sequence numbers never
+	 * repeat, and the versions of the successive scans of a thread only grow (each is taken after the previous
+	 * one was closed, see KiWi.closeVersion) - so a state is never seen again, and a helper that read the record
+	 * during an earlier scan can not set the version of a later one.
+	 * a helper must read the state before it takes the version it sets (see KiWi.getScansArray) - a version
+	 * taken earlier may be older than puts completed before a later scan of the record started **/
 	public static class ScanData<K extends Comparable<? super K>,V> extends ThreadData
 	{
+		public ScanData()
+		{
+			this.state = new AtomicLong(Chunk.NONE);
+		}
 
-		public ScanData(K min, K max)
+		/** a fixed snapshot of a scan, see KiWi.getScansArray */
+		public ScanData(K min, K max, long version)
 		{
+			this.state = new AtomicLong(version);
 			this.min = min;
 			this.max = max;
 		}
 
-		public final AtomicInteger version = new AtomicInteger(Chunk.NONE);
-		public final K min;
-		public final K max;
+		private final AtomicLong state;	// -(scan sequence) while the scan has no version, then its version
+		private long seq;				// sequence of the current scan - only accessed by the owner
+		private volatile K min;
+		private volatile K max;
+
+		/** starts the next scan of the owner thread (before it is published), with no version yet.
+		 * the range is written first - a helper seeing the new state sees the new range */
+		public void reset(K min, K max)
+		{
+			this.min = min;
+			this.max = max;
+			nextScan();
+		}
+
+		/** moves the state to the next scan, with no version - after the range is written */
+		protected final void nextScan()
+		{
+			state.set(-(++seq));
+		}
+
+		public K getMin()
+		{
+			return min;
+		}
+
+		public K getMax()
+		{
+			return max;
+		}
+
+		/** @return the current state - to pass to trySetVersion, or to compare with a later state (equal states
+		 * are of the same scan) */
+		public long getState()
+		{
+			return state.get();
+		}
+
+		public long getVersion()
+		{
+			return version(state.get());
+		}
+
+		/** @return the version in state, or NONE if the scan has none yet */
+		public static long version(long state)
+		{
+			return Math.max(state, Chunk.NONE);
+		}
 
+		/** sets the version if the state is still 'expected' - i.e. the same scan, with no version yet */
+		public boolean trySetVersion(long expected, long version)
+		{
+			return (expected < 0) && state.compareAndSet(expected, version);
+		}
 	}
 	
+	/** scan record of long-key scans, which keeps the range unboxed - so KiWiLong.scanLong allocates nothing.
+	 * the range is boxed only when a helper reads it (on rebalance) **/
+	public static class LongScanData extends ScanData<Long,Long>
+	{
+		private volatile long minLong;
+		private volatile long maxLong;
+
+		/** long-key counterpart of reset */
+		public void resetLong(long min, long max)
+		{
+			this.minLong = min;
+			this.maxLong = max;
+			nextScan();
+		}
+
+		@Override
+		public void reset(Long min, Long max)
+		{
+			resetLong(min, max);
+		}
+
+		@Override
+		public Long getMin()
+		{
+			return minLong;
+		}
+
+		@Override
+		public Long getMax()
+		{
+			return maxLong;
+		}
+	}
+
 	/** Thread data class for Put operations **/
 	public static class PutData<K extends Comparable<? super K>,V> extends ThreadData
 	{
@@ -0,0 +1,114 @@
+package kiwi;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands each thread an exclusive slot in the thread arrays (pending puts of chunks, pending scans of KiWi,
+ * operation epochs of ChunkReclaimer).
+ * A thread is registered on its first use of a slot, and its slot is recycled when it calls unregister() or once it is
+ * found dead. Free slots are reused lowest first, so occupied slots stay packed in [0, maxSlots()) and the
+ * thread arrays need only be walked up to maxSlots().
+ */
+public final class ThreadRegistry
+{
+	/** registration of a thread - weakly referencing it, so it is enqueued once the thread is collected */
+	private static final class Registration extends WeakReference<Thread>
+	{
+		final int slot;
+
+		Registration(Thread thread, int slot)
+		{
+			super(thread, collected);
+			this.slot = slot;
+		}
+	}
+
+	/*************** Members ***************/
+	private static final ReferenceQueue<Thread>						collected = new ReferenceQueue<>();
+	private static final ConcurrentLinkedQueue<Registration>		registrations = new ConcurrentLinkedQueue<>();
+	private static final ConcurrentSkipListSet<Integer>				freeSlots = new ConcurrentSkipListSet<>();
+	private static final AtomicInteger								maxSlots = new AtomicInteger(0);
+	private static final ThreadLocal<Registration>					current = new ThreadLocal<>();
+
+	private ThreadRegistry() {}
+
+	/*************** Methods ***************/
+
+	/** @return the slot of the current thread, registering it if needed */
+	public static int slot()
+	{
+		Registration reg = current.get();
+		if (reg == null)
+			reg = register();
+
+		return reg.slot;
+	}
+
+	/** @return an upper bound (exclusive) on the slots of all registered threads */
+	public static int maxSlots()
+	{
+		return maxSlots.get();
+	}
+
+	/** releases the slot of the current thread, e.g. before a pooled or virtual thread goes away.
+	 * must not be called in the middle of a map operation - the thread is registered again on its next one */
+	public static void unregister()
+	{
+		Registration reg = current.get();
+		if (reg == null)
+			return;
+
+		current.remove();
+		release(reg);
+	}
+
+	private static Registration register()
+	{
+		Integer slot = freeSlots.pollFirst();
+		if (slot == null)
+		{
+			recycleDeadThreads(maxSlots.get() % KiWi.MAX_THREADS == 0);
+			slot = freeSlots.pollFirst();
+		}
+		if (slot == null)
+			slot = maxSlots.getAndIncrement();
+
+		Registration reg = new Registration(Thread.currentThread(), slot);
+		registrations.add(reg);
+		current.set(reg);
+
+		return reg;
+	}
+
+	private static void release(Registration reg)
+	{
+		// only the one removing the registration frees its slot
+		if (registrations.remove(reg))
+			freeSlots.add(reg.slot);
+	}
+
+	/** frees the slots of collected threads, and if 'scanAll' also of threads that terminated but are not yet collected.
+	 * a dead thread has no operation in progress, so any data it left published is simply overwritten by the next owner */
+	private static void recycleDeadThreads(boolean scanAll)
+	{
+		Reference<? extends Thread> ref;
+		while ((ref = collected.poll()) != null)
+			release((Registration) ref);
+
+		// scanning all registrations is linear - done only once in a while, before adding slots
+		if (!scanAll)
+			return;
+
+		for (Registration reg : registrations)
+		{
+			Thread thread = reg.get();
+			if ((thread == null) || !thread.isAlive())
+				release(reg);
+		}
+	}
+}
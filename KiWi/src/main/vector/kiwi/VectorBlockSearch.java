@@ -0,0 +1,62 @@
+package kiwi;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * BlockSearch comparing a whole vector of keys at once (e.g. 8 ints with AVX2, 16 with AVX-512): the count of
+ * smaller keys is the count of set lanes of the comparison mask, so a block is searched without a branch per key.
+ * Built only by the 'vector' profile, and loaded by BlockSearch.create only if jdk.incubator.vector is available.
+ */
+public final class VectorBlockSearch extends BlockSearch
+{
+	private static final VectorSpecies<Integer>	INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Long>	LONG_SPECIES = LongVector.SPECIES_PREFERRED;
+
+	public VectorBlockSearch()
+	{
+		// vectors narrower than 128 bits are emulated, hence slower than comparing keys one by one
+		if (INT_SPECIES.vectorBitSize() < 128)
+			throw new UnsupportedOperationException("no SIMD support");
+	}
+
+	@Override
+	public int countLess(int[] keys, int from, int to, int key)
+	{
+		int count = 0;
+		int i = from;
+
+		for (; i <= to - INT_SPECIES.length(); i += INT_SPECIES.length())
+			count += IntVector.fromArray(INT_SPECIES, keys, i).compare(VectorOperators.LT, key).trueCount();
+
+		if (i < to)
+			count += IntVector.fromArray(INT_SPECIES, keys, i, INT_SPECIES.indexInRange(i, to))
+					.compare(VectorOperators.LT, key, INT_SPECIES.indexInRange(i, to)).trueCount();
+
+		return count;
+	}
+
+	@Override
+	public int countLess(long[] keys, int from, int to, long key)
+	{
+		int count = 0;
+		int i = from;
+
+		for (; i <= to - LONG_SPECIES.length(); i += LONG_SPECIES.length())
+			count += LongVector.fromArray(LONG_SPECIES, keys, i).compare(VectorOperators.LT, key).trueCount();
+
+		if (i < to)
+			count += LongVector.fromArray(LONG_SPECIES, keys, i, LONG_SPECIES.indexInRange(i, to))
+					.compare(VectorOperators.LT, key, LONG_SPECIES.indexInRange(i, to)).trueCount();
+
+		return count;
+	}
+
+	@Override
+	public boolean isVectorized()
+	{
+		return true;
+	}
+}
@@ -0,0 +1,99 @@
+package kiwi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro benchmark of chunk index lookups: floor() of SkipListChunkIndex (boxed key, ConcurrentSkipListMap)
+ * against floorInt() of IntChunkIndex, with and without a learned model, on an index of numChunks chunks
+ * with uniformly random lookup keys. Chunk min keys are evenly spread, with some jitter.
+ * Usage: ChunkIndexBenchmark [numChunks (default 1M)] [lookups per round (default 10M)] [learned epsilon (default 16)]
+ * Run on the test classpath (e.g. mvn test-compile, then java -cp target/classes:target/test-classes), with a
+ * large enough heap (e.g. -Xmx4g for the default 1M chunks).
+ */
+public class ChunkIndexBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+	private static final int KEYS = 1 << 20;	// # of distinct pre-generated lookup keys
+
+	static int sink;	// keeps lookup results alive
+
+	public static void main(String[] args)
+	{
+		int numChunks = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 20;
+		int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000;
+		int epsilon = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+
+		// chunks are only indexed, never filled - keep them as small as possible
+		Chunk.MAX_ITEMS = 1;
+		KiWi.MAX_THREADS = 1;
+
+		// chunk min keys spread over the int range, starting at Integer.MIN_VALUE (head chunk)
+		Random random = new Random(1);
+		long stride = (1L << 32) / numChunks;
+		List<ChunkInt> chunks = new ArrayList<>(numChunks);
+		for (int i = 0; i < numChunks; ++i)
+		{
+			long jitter = (i == 0) ? 0 : random.nextInt((int) Math.min(Integer.MAX_VALUE, stride / 2));
+			chunks.add(new ChunkInt((int) (Integer.MIN_VALUE + i * stride + jitter), null, false));
+		}
+
+		SkipListChunkIndex<Integer,Integer> skiplist = new SkipListChunkIndex<>();
+		for (ChunkInt c : chunks)
+			skiplist.putIfAbsent(c);
+		IntChunkIndex<Integer> intIndex = new IntChunkIndex<>(chunks);
+		IntChunkIndex<Integer> learnedIndex = new IntChunkIndex<>(chunks, epsilon);
+
+		int[] keys = new int[KEYS];
+		Integer[] boxedKeys = new Integer[KEYS];	// boxed in advance - the skiplist pays for navigation only
+		for (int i = 0; i < KEYS; ++i)
+		{
+			keys[i] = random.nextInt();
+			boxedKeys[i] = keys[i];
+		}
+
+		System.out.format("chunks=%d lookups=%d learned model: epsilon=%d segments=%d mean error=%.2f max error=%d\n",
+				numChunks, lookups, epsilon, learnedIndex.getModelSegmentCount(),
+				learnedIndex.getModelMeanError(), learnedIndex.getModelMaxError());
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round)
+		{
+			double skiplistNs = timeSkipList(skiplist, boxedKeys, lookups);
+			double intIndexNs = timeIntIndex(intIndex, keys, lookups);
+			double learnedNs = timeIntIndex(learnedIndex, keys, lookups);
+
+			if (round >= WARMUP_ROUNDS)
+				System.out.format("round %d: SkipListChunkIndex.floor %.1f ns/op, IntChunkIndex.floorInt %.1f ns/op, " +
+						"learned %.1f ns/op\n", round - WARMUP_ROUNDS, skiplistNs, intIndexNs, learnedNs);
+		}
+	}
+
+	private static double timeSkipList(SkipListChunkIndex<Integer,Integer> index, Integer[] keys, int lookups)
+	{
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; ++i)
+		{
+			if (index.floor(keys[i & (KEYS - 1)]) != null)
+				found++;
+		}
+		long time = System.nanoTime() - start;
+		sink += found;
+		return (double) time / lookups;
+	}
+
+	private static double timeIntIndex(IntChunkIndex<Integer> index, int[] keys, int lookups)
+	{
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; ++i)
+		{
+			if (index.floorInt(keys[i & (KEYS - 1)]) != null)
+				found++;
+		}
+		long time = System.nanoTime() - start;
+		sink += found;
+		return (double) time / lookups;
+	}
+}
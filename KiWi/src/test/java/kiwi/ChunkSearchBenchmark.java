@@ -0,0 +1,117 @@
+package kiwi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro benchmark of lookups within compacted chunks: findInt() over the sorted prefix by binary search on the
+ * order array (keys ORDER_SIZE ints apart), against the blocked search layout (KiWi.BlockedSearch), and against
+ * the blocked layout over packed chunks (KiWi.PackCompactedChunks). Each layout is loaded into its own map with
+ * the same uniformly random keys and compacted; the chunk of each lookup key is resolved in advance, so only
+ * the search within the chunk is timed.
+ * Usage: ChunkSearchBenchmark [items (default 4M)] [lookups per round (default 10M)]
+ * Add --add-modules jdk.incubator.vector to the JVM options to search blocks with vectors (see BlockSearch).
+ * Run on the test classpath (e.g. mvn test-compile, then java -cp target/classes:target/test-classes), with a
+ * large enough heap (e.g. -Xmx4g for the default 4M items).
+ */
+public class ChunkSearchBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+	private static final int KEYS = 1 << 20;	// # of distinct pre-generated lookup keys
+
+	static int sink;	// keeps lookup results alive
+
+	public static void main(String[] args)
+	{
+		int items = (args.length > 0) ? Integer.parseInt(args[0]) : 4 << 20;
+		int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000;
+
+		Random random = new Random(1);
+		int[] itemKeys = new int[items];
+		for (int i = 0; i < items; ++i)
+			itemKeys[i] = random.nextInt();
+
+		List<Chunk<Integer,Integer>> binary = load(itemKeys, false, false);
+		List<Chunk<Integer,Integer>> blocked = load(itemKeys, true, false);
+		List<Chunk<Integer,Integer>> packed = load(itemKeys, true, true);
+
+		// half of the lookups hit an item
+		int[] keys = new int[KEYS];
+		for (int i = 0; i < KEYS; ++i)
+			keys[i] = ((i & 1) == 0) ? itemKeys[random.nextInt(items)] : random.nextInt();
+
+		Chunk<Integer,Integer>[] binaryChunks = resolve(binary, keys);
+		Chunk<Integer,Integer>[] blockedChunks = resolve(blocked, keys);
+		Chunk<Integer,Integer>[] packedChunks = resolve(packed, keys);
+
+		System.out.format("items=%d lookups=%d chunks=%d vectorized block search=%b\n", items, lookups, binary.size(),
+				BlockSearch.instance.isVectorized());
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round)
+		{
+			double binaryNs = time(binaryChunks, keys, lookups);
+			double blockedNs = time(blockedChunks, keys, lookups);
+			double packedNs = time(packedChunks, keys, lookups);
+
+			if (round >= WARMUP_ROUNDS)
+				System.out.format("round %d: binary search %.1f ns/op, blocked %.1f ns/op, blocked packed %.1f ns/op\n",
+						round - WARMUP_ROUNDS, binaryNs, blockedNs, packedNs);
+		}
+	}
+
+	/** @return the chunks of a map holding keys, compacted with the given search layout */
+	private static List<Chunk<Integer,Integer>> load(int[] keys, boolean blockedSearch, boolean pack)
+	{
+		KiWi.BlockedSearch = blockedSearch;
+		KiWi.PackCompactedChunks = pack;
+
+		KiWiIntMap map = new KiWiIntMap();
+		for (int key : keys)
+			map.put(key, key);
+		map.kiwi.compactAllSerial();
+
+		List<Chunk<Integer,Integer>> chunks = new ArrayList<>();
+		for (Chunk<Integer,Integer> c = map.kiwi.getIntIndex().first(); c != null; c = c.next.getReference())
+			chunks.add(c);
+
+		return chunks;
+	}
+
+	/** @return the chunk each key falls in */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static Chunk<Integer,Integer>[] resolve(List<Chunk<Integer,Integer>> chunks, int[] keys)
+	{
+		Chunk<Integer,Integer>[] resolved = new Chunk[keys.length];
+		for (int i = 0; i < keys.length; ++i)
+		{
+			int start = 0;
+			int end = chunks.size();
+			while (end - start > 1)
+			{
+				int curr = (start + end) >>> 1;
+				if (chunks.get(curr).minKey > keys[i])
+					end = curr;
+				else
+					start = curr;
+			}
+			resolved[i] = chunks.get(start);
+		}
+		return resolved;
+	}
+
+	private static double time(Chunk<Integer,Integer>[] chunks, int[] keys, int lookups)
+	{
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; ++i)
+		{
+			int k = i & (KEYS - 1);
+			if (chunks[k].findInt(keys[k], Chunk.NONE) != Chunk.NONE)
+				found++;
+		}
+		long time = System.nanoTime() - start;
+		sink += found;
+		return (double) time / lookups;
+	}
+}
@@ -0,0 +1,79 @@
+package kiwi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Batch puts of KiWiIntMap, checked against a TreeMap - with small chunks, so runs are split between chunks
+ * and often do not fit in one.
+ */
+public class KiWiIntMapTest
+{
+	private static final int CHUNK_ITEMS = 64;
+
+	private int maxItems;
+
+	@Before
+	public void setUp()
+	{
+		maxItems = Chunk.MAX_ITEMS;
+		Chunk.MAX_ITEMS = CHUNK_ITEMS;
+	}
+
+	@After
+	public void tearDown()
+	{
+		Chunk.MAX_ITEMS = maxItems;
+	}
+
+	@Test
+	public void putBatchPutsLastValueOfEachKey()
+	{
+		Random random = new Random(3);
+		KiWiIntMap map = new KiWiIntMap();
+		TreeMap<Integer,Integer> expected = new TreeMap<>();
+
+		for (int round = 0; round < 200; ++round)
+		{
+			// sorted batches, and unsorted ones with repeated keys
+			int count = 1 + random.nextInt(3 * CHUNK_ITEMS);
+			int[] keys = new int[count];
+			int[] vals = new int[count];
+			int start = random.nextInt(2000);
+			for (int i = 0; i < count; ++i)
+			{
+				keys[i] = ((round & 1) == 0) ? start + 2 * i : random.nextInt(2000);
+				vals[i] = random.nextInt();
+				expected.put(keys[i], vals[i]);
+			}
+
+			map.putBatch(keys, vals);
+		}
+
+		int[] keysOut = new int[expected.size() + 1];
+		int[] valsOut = new int[expected.size() + 1];
+		assertEquals(expected.size(), map.scan(Integer.MIN_VALUE, Integer.MAX_VALUE, keysOut, valsOut));
+
+		int i = 0;
+		for (Map.Entry<Integer,Integer> e : expected.entrySet())
+		{
+			assertEquals(e.getKey().intValue(), keysOut[i]);
+			assertEquals(e.getValue().intValue(), valsOut[i]);
+			assertEquals(e.getValue().intValue(), map.get(e.getKey(), -1));
+			++i;
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void putBatchRejectsFewerValuesThanKeys()
+	{
+		new KiWiIntMap().putBatch(new int[] {1, 2, 3}, new int[] {1, 2});
+	}
+}
@@ -0,0 +1,133 @@
+package kiwi;
+
+import kiwi.ThreadData.ScanData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the versions ScanIndex keeps against a brute-force oracle: for each key, the newest version, and for
+ * each scan holding the key the newest version not newer than the scan's. Keys are visited in ascending order
+ * with one index, as compaction does - so runs of keys held by the same scans are reused.
+ */
+public class ScanIndexTest
+{
+	private static final int KEYS = 200;
+	private static final int ROUNDS = 2000;
+
+	@Test
+	public void keepsExactlyTheVersionsScansSee()
+	{
+		Random random = new Random(17);
+
+		// one item per key - the versions of a key are only given to shouldKeep, they are not read from the chunk
+		Chunk<Integer,Integer> chunk = new ChunkIntInt();
+		int[] items = new int[KEYS];
+		for (int key = 0; key < KEYS; ++key)
+			items[key] = chunk.allocateSerial(key, key);
+
+		for (int round = 0; round < ROUNDS; ++round)
+		{
+			int numScans = random.nextInt(8);
+			long[] scanVersions = new long[numScans];
+			int[] from = new int[numScans];
+			int[] to = new int[numScans];
+			ArrayList<ScanData> scans = new ArrayList<>(numScans);
+
+			for (int s = 0; s < numScans; ++s)
+			{
+				// few distinct versions and short ranges - so scans share versions and overlap
+				scanVersions[s] = 2 + random.nextInt(20);
+				from[s] = random.nextInt(KEYS);
+				to[s] = Math.min(KEYS - 1, from[s] + random.nextInt(KEYS / 4));
+				scans.add(new ScanData<>(from[s], to[s], scanVersions[s]));
+			}
+
+			ScanIndex<Integer> index = new ScanIndex<>(scans, 30, null, null);
+
+			for (int key = 0; key < KEYS; ++key)
+			{
+				long[] versions = randomVersions(random);
+
+				boolean[] kept = new boolean[versions.length];
+				index.reset(chunk, items[key]);
+				for (int i = 0; i < versions.length; ++i)
+				{
+					kept[i] = index.shouldKeep(versions[i]);
+					if (kept[i])
+						index.savedVersion(versions[i]);
+				}
+
+				boolean[] expected = oracle(versions, key, scanVersions, from, to);
+				if (!Arrays.equals(expected, kept))
+					fail("round " + round + ", key " + key + ": versions " + Arrays.toString(versions) + " kept " +
+							Arrays.toString(kept) + " - scans " + Arrays.toString(scanVersions) + " from " +
+							Arrays.toString(from) + " to " + Arrays.toString(to));
+			}
+		}
+	}
+
+	@Test
+	public void keepsOnlyTheNewestVersionWithoutScans()
+	{
+		Chunk<Integer,Integer> chunk = new ChunkIntInt();
+		int item = chunk.allocateSerial(5, 5);
+
+		ScanIndex<Integer> index = new ScanIndex<>(new ArrayList<ScanData>(), 10, null, null);
+		index.reset(chunk, item);
+
+		assertTrue(index.shouldKeep(9));
+		index.savedVersion(9);
+		assertFalse(index.shouldKeep(7));
+		assertFalse(index.shouldKeep(3));
+	}
+
+	/** @return descending versions of a key - possibly repeated, as puts may share a version */
+	private static long[] randomVersions(Random random)
+	{
+		long[] versions = new long[1 + random.nextInt(6)];
+		for (int i = 0; i < versions.length; ++i)
+			versions[i] = 2 + random.nextInt(24);
+
+		Arrays.sort(versions);
+		for (int i = 0; i < versions.length / 2; ++i)
+		{
+			long v = versions[i];
+			versions[i] = versions[versions.length - 1 - i];
+			versions[versions.length - 1 - i] = v;
+		}
+
+		return versions;
+	}
+
+	/** @return for each of the (descending) versions of key, whether it is the newest one or the one some scan
+	 * holding key sees - the first not newer than the scan's version */
+	private static boolean[] oracle(long[] versions, int key, long[] scanVersions, int[] from, int[] to)
+	{
+		boolean[] keep = new boolean[versions.length];
+		keep[0] = true;
+
+		for (int s = 0; s < scanVersions.length; ++s)
+		{
+			if ((key < from[s]) || (key > to[s]))
+				continue;
+
+			for (int i = 0; i < versions.length; ++i)
+			{
+				if (versions[i] <= scanVersions[s])
+				{
+					keep[i] = true;
+					break;
+				}
+			}
+		}
+
+		return keep;
+	}
+}
@@ -0,0 +1,269 @@
+package kiwi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Stress tests of scans and gets against concurrent puts and compactions: a scan (or get) must see every put
+ * completed before it started. Each writer owns some keys and writes them growing values - one by one or in
+ * batches - so a read of an older value than one written before it started missed a completed put.
+ */
+public class ScanLinearizabilityTest
+{
+	private static final int WRITERS = 4;
+	private static final int SCANNERS = 12;
+	private static final int KEYS_PER_WRITER = 300;
+	private static final int CHUNK_ITEMS = 128;		// small chunks, so puts keep rebalancing them
+	private static final int SCAN_SPINS = 100000;	// scans wait long for a version to share - so they are often helped
+	private static final long DURATION_MS = 3000;
+
+	private int maxItems;
+	private int scanSpins;
+
+	@Before
+	public void setUp()
+	{
+		maxItems = Chunk.MAX_ITEMS;
+		Chunk.MAX_ITEMS = CHUNK_ITEMS;
+		scanSpins = KiWi.ScanVersionSpins;
+		KiWi.ScanVersionSpins = SCAN_SPINS;
+	}
+
+	@After
+	public void tearDown()
+	{
+		Chunk.MAX_ITEMS = maxItems;
+		KiWi.ScanVersionSpins = scanSpins;
+	}
+
+	/** the map operations the test uses */
+	private abstract static class Map
+	{
+		abstract void put(int key, int value);
+
+		/** @return the value of key, which the test always puts */
+		abstract int get(int key);
+
+		/** @return # of items in [min,max] copied into keys and values */
+		abstract int scan(int min, int max, int[] keys, int[] values);
+
+		void putBatch(int[] keys, int[] values)
+		{
+			for (int i = 0; i < keys.length; ++i)
+				put(keys[i], values[i]);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void scansSeeCompletedPuts() throws InterruptedException
+	{
+		final KiWiMap map = new KiWiMap();
+
+		run(new Map() {
+			@Override
+			void put(int key, int value) { map.put(key, value); }
+
+			@Override
+			int get(int key) { return map.get(key); }
+
+			@Override
+			int scan(int min, int max, int[] keysOut, int[] valuesOut)
+			{
+				Integer[] keys = new Integer[keysOut.length];
+				Integer[] values = new Integer[valuesOut.length];
+				int n = map.getRange(values, keys, true, min, max);
+				for (int i = 0; i < n; ++i)
+				{
+					keysOut[i] = keys[i];
+					valuesOut[i] = values[i];
+				}
+				return n;
+			}
+		}, false);
+	}
+
+	@Test(timeout = 60000)
+	public void intScansSeeCompletedPuts() throws InterruptedException
+	{
+		final KiWiIntMap map = new KiWiIntMap();
+
+		run(intMap(map), false);
+	}
+
+	@Test(timeout = 60000)
+	public void scansSeeCompletedBatches() throws InterruptedException
+	{
+		final KiWiIntMap map = new KiWiIntMap();
+
+		run(intMap(map), true);
+	}
+
+	@Test(timeout = 60000)
+	public void longScansSeeCompletedPuts() throws InterruptedException
+	{
+		final KiWiLongMap map = new KiWiLongMap();
+
+		run(new Map() {
+			@Override
+			void put(int key, int value) { map.put(key, value); }
+
+			@Override
+			int get(int key) { return (int) map.get(key, -1); }
+
+			@Override
+			int scan(int min, int max, int[] keysOut, int[] valuesOut)
+			{
+				long[] keys = new long[keysOut.length];
+				long[] values = new long[valuesOut.length];
+				int n = map.scan(min, max, keys, values);
+				for (int i = 0; i < n; ++i)
+				{
+					keysOut[i] = (int) keys[i];
+					valuesOut[i] = (int) values[i];
+				}
+				return n;
+			}
+		}, false);
+	}
+
+	private static Map intMap(final KiWiIntMap map)
+	{
+		return new Map() {
+			@Override
+			void put(int key, int value) { map.put(key, value); }
+
+			@Override
+			int get(int key) { return map.get(key, -1); }
+
+			@Override
+			int scan(int min, int max, int[] keysOut, int[] valuesOut)
+			{
+				return map.scan(min, max, keysOut, valuesOut);
+			}
+
+			@Override
+			void putBatch(int[] keys, int[] values) { map.putBatch(keys, values); }
+		};
+	}
+
+	/** @param batch writers put their keys with putBatch - in ascending or descending order */
+	private void run(final Map map, final boolean batch) throws InterruptedException
+	{
+		final int numKeys = WRITERS * KEYS_PER_WRITER;
+		final AtomicIntegerArray written = new AtomicIntegerArray(numKeys);	// last value of each key whose put completed
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<>(null);
+
+		for (int key = 0; key < numKeys; ++key)
+			map.put(key, 0);
+
+		Thread[] threads = new Thread[WRITERS + SCANNERS];
+		for (int t = 0; t < WRITERS; ++t)
+		{
+			final int writer = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					int[] keys = new int[KEYS_PER_WRITER];
+					int[] values = new int[KEYS_PER_WRITER];
+
+					for (int value = 1; !stop.get(); ++value)
+					{
+						if (!batch)
+						{
+							for (int key = writer; key < numKeys; key += WRITERS)
+							{
+								map.put(key, value);
+								written.set(key, value);
+							}
+							continue;
+						}
+
+						// batches sorted by key, and unsorted ones (sorted by putBatch)
+						for (int i = 0; i < KEYS_PER_WRITER; ++i)
+						{
+							keys[i] = writer + WRITERS * (((value & 1) == 0) ? i : KEYS_PER_WRITER - 1 - i);
+							values[i] = value;
+						}
+
+						map.putBatch(keys, values);
+						for (int key : keys)
+							written.set(key, value);
+					}
+				}
+			});
+		}
+
+		for (int t = 0; t < SCANNERS; ++t)
+		{
+			final int scanner = t;
+			threads[WRITERS + t] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					int[] expected = new int[numKeys];
+					int[] keys = new int[numKeys];
+					int[] values = new int[numKeys];
+
+					try
+					{
+						for (int round = 0; !stop.get(); ++round)
+						{
+							// scans of different lengths, so scans start and end at different times
+							int min = (round * 37 + scanner * 101) % numKeys;
+							int max = Math.min(numKeys - 1, min + 1 + (round % 7) * 60);
+
+							for (int key = min; key <= max; ++key)
+								expected[key] = written.get(key);
+
+							int n = map.scan(min, max, keys, values);
+							if (n != max - min + 1)
+								fail("scan of [" + min + "," + max + "] read " + n + " keys");
+
+							for (int i = 0; i < n; ++i)
+							{
+								if (values[i] < expected[keys[i]])
+									fail("scan read " + values[i] + " for key " + keys[i] + " after " +
+											expected[keys[i]] + " was put");
+							}
+
+							// and a get, which helps pending puts of its key alone
+							int key = (min + round) % numKeys;
+							int before = written.get(key);
+							int value = map.get(key);
+							if (value < before)
+								fail("get read " + value + " for key " + key + " after " + before + " was put");
+						}
+					}
+					catch (Throwable e)
+					{
+						failure.compareAndSet(null, e);
+						stop.set(true);
+					}
+				}
+			});
+		}
+
+		for (Thread t : threads)
+			t.start();
+
+		Thread.sleep(DURATION_MS);
+		stop.set(true);
+
+		for (Thread t : threads)
+			t.join();
+
+		if (failure.get() != null)
+			throw new AssertionError(failure.get().getMessage(), failure.get());
+		assertTrue(written.get(0) > 0);
+	}
+}